@@ -1,29 +1,128 @@
 package com.linfords.swing.util;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 public class AsyncPrinter extends Thread {
 
 	private final static String THREAD_NAME_PREFIX = "AsyncPrinter ";
 
+	/**
+	 * Default capacity of the ring buffer feeding the printer thread.
+	 */
+	final static int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Output is ordered by the moment an {@code Expression} is created, not by the
+	 * moment it is added. Callers rely on this to reserve a place in the output,
+	 * e.g. a {@code Divider} header that is created before the lines it heads but
+	 * only added once it is known that those lines are worth printing.
+	 */
 	public static abstract class Expression implements Comparable<Expression> {
-		private static int nextPriority = Integer.MIN_VALUE;
-		private final int priority;
+		private static final AtomicLong nextSequence = new AtomicLong();
+		private long sequence;
+
+		/** Bytes charged against the pending byte budget while this is queued. */
+		int reservedBytes = 0;
+
+		/** When it was handed to the printer, for the enqueue-to-write latency. */
+		long enqueuedNanos = 0;
 
 		abstract public Object eval();
 
+		/**
+		 * Rough size of the rendered output, for the pending byte budget. The
+		 * producer can't know for sure without calling {@code eval()}, which is
+		 * exactly the work being deferred.
+		 */
+		int estimatedSize() {
+			return DEFAULT_SIZE_ESTIMATE;
+		}
+
+		/**
+		 * Renders straight into the printer's batch buffer. Only expressions in
+		 * this package can skip the intermediate object {@code eval()} returns.
+		 */
+		void appendTo(final StringBuilder sb) {
+			sb.append(eval());
+		}
+
+		/**
+		 * Override to return true when {@code eval()} is costly, e.g. a full
+		 * thread dump. Such expressions are evaluated on the evaluation threads,
+		 * if any; see {@link AsyncPrinter#setEvaluationThreads(int)}. They may
+		 * then run concurrently with other expressions, but their output still
+		 * appears in order.
+		 */
+		protected boolean isExpensive() {
+			return false;
+		}
+
+		/**
+		 * Override to name the kind of output this is, e.g.
+		 * {@link AsyncPrinter#CATEGORY_THREAD_DUMP}, so it can be rate limited;
+		 * see {@link AsyncPrinter#setRateLimit(String, double, int)}. Null means
+		 * never limited.
+		 */
+		protected String category() {
+			return null;
+		}
+
+		/**
+		 * A hash of everything the rendered output depends on, so a repeat can
+		 * be recognized and suppressed before it is rendered. Zero means
+		 * unknown; the output is then compared after rendering.
+		 */
+		long identity() {
+			return 0;
+		}
+
 		public Expression() {
-			priority = nextPriority++;
+			sequence = nextSequence.getAndIncrement();
+		}
+
+		/** For pooled expressions: takes a place in the output as if newly created. */
+		final void resequence() {
+			sequence = nextSequence.getAndIncrement();
 		}
 
 		@Override
 		public int compareTo(Expression other) {
-			return this.priority - other.priority;
+			return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
 		}
 	}
 
@@ -31,10 +130,119 @@ public class AsyncPrinter extends Thread {
 		QUEUE, STASH
 	}
 
-	private boolean notDone = true;
-	private final PriorityBlockingQueue<Expression> queue = new PriorityBlockingQueue<Expression>();
-	private final PriorityBlockingQueue<Expression> deferredQueue = new PriorityBlockingQueue<Expression>();
-	private final PrintStream out;
+	/**
+	 * What a producer does when the printer is backlogged, i.e. the ring is full
+	 * or the pending byte budget is used up.
+	 */
+	public static enum OverflowPolicy {
+		/** Wait up to the block timeout for room, then drop the new item. */
+		BLOCK,
+		/** Drop the item being added. */
+		DROP_NEWEST,
+		/**
+		 * Discard the oldest queued items until the new one fits. If the printer
+		 * has already taken everything queued, drop the new item instead.
+		 */
+		DROP_OLDEST,
+		/** Keep one in every N items, waiting as for BLOCK; drop the rest. */
+		SAMPLE
+	}
+
+	/** Category of every {@code add(ThreadInfo)}. */
+	public final static String CATEGORY_THREAD_DUMP = "threadDump";
+
+	/** Category of every {@code add(Throwable)}. */
+	public final static String CATEGORY_EXCEPTION = "exception";
+
+	private final static int DEFAULT_SIZE_ESTIMATE = 128;
+
+	/** Distinct entries remembered for duplicate suppression. */
+	private final static int MAX_DUPLICATE_ENTRIES = 4096;
+
+	/** Pre-allocated entries for {@code addMessage}. */
+	private final static int MESSAGE_POOL_SIZE = 1024;
+
+	/** Most arguments one {@code addMessage} entry can hold. */
+	private final static int MAX_MESSAGE_ARGS = 3;
+
+	/** Expensive expressions being evaluated at once, per evaluation thread. */
+	private final static int MAX_IN_FLIGHT_PER_THREAD = 4;
+
+	/** While blocked, how long a producer parks between attempts. */
+	private final static long BLOCK_RETRY_NANOS = 50 * 1000;
+
+	/**
+	 * A batch is written once it grows past this size...
+	 */
+	private final static int FLUSH_THRESHOLD_CHARS = 64 * 1024;
+
+	/**
+	 * ...or once its oldest line has waited this long, whichever comes first.
+	 */
+	private final static long FLUSH_LATENCY_NANOS = 5 * Util.NANO_PER_MILLI;
+
+	private final static String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private volatile boolean notDone = true;
+	private final MpscRingBuffer<Expression> queue;
+	private final MpscRingBuffer<MessageExpression> messagePool = new MpscRingBuffer<MessageExpression>(MESSAGE_POOL_SIZE);
+	private final Sink sink;
+
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private volatile long blockTimeoutNanos = 100 * Util.NANO_PER_MILLI;
+	private volatile int sampleRate = 10;
+	private volatile long maxPendingBytes = Long.MAX_VALUE;
+	private volatile int maxDeferredItems = Integer.MAX_VALUE;
+	private volatile ExecutorService evaluators = null;
+	private volatile DuplicateSuppressor duplicates = null;
+	private final ConcurrentHashMap<String, TokenBucket> rateLimits = new ConcurrentHashMap<String, TokenBucket>();
+	private volatile int maxInFlight = 0;
+
+	/**
+	 * Output order for the printer thread: evaluations still running and the
+	 * cheap expressions queued behind them. Printer thread only.
+	 */
+	private final ArrayDeque<Object> window = new ArrayDeque<Object>();
+	private int inFlight = 0;
+
+	/** Estimated bytes queued or waiting to be evaluated. */
+	private final AtomicLong pendingBytes = new AtomicLong();
+	private final AtomicLong sampleCounter = new AtomicLong();
+
+	// Items lost since the last in-band report, by cause.
+	private final AtomicLong droppedNewest = new AtomicLong();
+	private final AtomicLong droppedOldest = new AtomicLong();
+	private final AtomicLong droppedSampled = new AtomicLong();
+	private final AtomicLong droppedTimedOut = new AtomicLong();
+	private final AtomicLong droppedDeferred = new AtomicLong();
+	private final AtomicLong droppedRateLimited = new AtomicLong();
+
+	// Always-on instrumentation, see AsyncPrinterMXBean.
+	private final AtomicLong enqueuedCount = new AtomicLong();
+	private final AtomicInteger stashedItems = new AtomicInteger();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong batchesWritten = new AtomicLong();
+	private final LatencyHistogram evalNanos = new LatencyHistogram();
+	private final LatencyHistogram enqueueToWriteNanos = new LatencyHistogram();
+	private final LatencyHistogram sinkWriteNanos = new LatencyHistogram();
+	private final Metrics metrics = new Metrics();
+	private ObjectName mxBeanName = null;
+
+	/** The printer whose bean is registered under each name. */
+	private static final Map<ObjectName, AsyncPrinter> MXBEAN_OWNERS = new HashMap<ObjectName, AsyncPrinter>();
+
+	/** Enqueue times of the expressions in the current batch. Printer thread only. */
+	private long[] batchEnqueueNanos = new long[256];
+	private int batchEntries = 0;
+	private final AtomicLong totalDropped = new AtomicLong();
+
+	// Printer thread only. Reused from one batch to the next.
+	private final StringBuilder batch = new StringBuilder(FLUSH_THRESHOLD_CHARS);
+	private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private ByteBuffer encoded = ByteBuffer.allocate(FLUSH_THRESHOLD_CHARS);
+	private long batchStartNanos = 0;
 
 	private static AsyncPrinter DEFAULT_INSTANCE = null;
 
@@ -51,138 +259,752 @@ public class AsyncPrinter extends Thread {
 	}
 
 	public AsyncPrinter(final PrintStream out, final String threadNamePostfix) {
-		super(THREAD_NAME_PREFIX + threadNamePostfix);
-		this.out = out;
+		this(out, threadNamePostfix, DEFAULT_CAPACITY);
+	}
+
+	public void setOverflowPolicy(final OverflowPolicy policy) {
+		if (policy == null) {
+			throw new NullPointerException("policy");
+		}
+		this.overflowPolicy = policy;
+	}
+
+	/** How long {@code BLOCK} and {@code SAMPLE} wait before dropping. */
+	public void setBlockTimeout(final long timeout, final TimeUnit unit) {
+		this.blockTimeoutNanos = unit.toNanos(timeout);
+	}
+
+	/** {@code SAMPLE} keeps one in every {@code oneInN} items while backlogged. */
+	public void setSampleRate(final int oneInN) {
+		if (oneInN < 1) {
+			throw new IllegalArgumentException("oneInN(" + oneInN + ") must be at least 1");
+		}
+		this.sampleRate = oneInN;
+	}
+
+	/**
+	 * Budget for the estimated size of everything not yet printed. A single
+	 * item larger than the budget is still accepted when nothing else is pending.
+	 */
+	public void setMaxPendingBytes(final long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * Evaluates {@link Expression#isExpensive() expensive} expressions on
+	 * {@code threads} daemon threads instead of the printer thread. Output
+	 * order is unchanged. Zero, the default, evaluates everything on the
+	 * printer thread.
+	 */
+	public synchronized void setEvaluationThreads(final int threads) {
+		if (threads < 0) {
+			throw new IllegalArgumentException("threads(" + threads + ") must not be negative");
+		}
+		final ExecutorService previous = evaluators;
+		if (threads == 0) {
+			evaluators = null;
+		} else {
+			final String namePrefix = getName() + "-eval-";
+			final AtomicLong threadCount = new AtomicLong();
+			evaluators = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		maxInFlight = threads * MAX_IN_FLIGHT_PER_THREAD;
+		if (previous != null) {
+			// Already submitted evaluations still run.
+			previous.shutdown();
+		}
+	}
+
+	/**
+	 * Output of {@value DuplicateSuppressor#MIN_CHARS} characters or more that
+	 * is identical to something printed less than {@code window} ago is
+	 * replaced by a "repeated N times" line. Zero, the default, disables this.
+	 * <p>
+	 * Thread dumps, messages whose arguments are numbers, strings or enums,
+	 * and stash blocks made only of these are recognized as repeats before
+	 * they are rendered, so a repeat costs a hash of its inputs rather than a
+	 * rendering. Other output is compared after rendering, which saves only
+	 * the write.
+	 */
+	public void setDuplicateWindow(final long window, final TimeUnit unit) {
+		final long windowNanos = unit.toNanos(window);
+		this.duplicates = (windowNanos > 0) ? new DuplicateSuppressor(windowNanos, MAX_DUPLICATE_ENTRIES) : null;
+	}
+
+	/**
+	 * Limits expressions of {@code category} to {@code perSecond} on average,
+	 * with bursts of up to {@code burst}. The excess is dropped and reported
+	 * with the other drops. A {@code perSecond} of zero removes the limit.
+	 */
+	public void setRateLimit(final String category, final double perSecond, final int burst) {
+		if (perSecond <= 0) {
+			rateLimits.remove(category);
+		} else {
+			rateLimits.put(category, new TokenBucket(perSecond, burst));
+		}
+	}
+
+	/** Beyond this many items in one stash scope, further stashed adds are dropped. */
+	public void setMaxDeferredItems(final int maxDeferredItems) {
+		this.maxDeferredItems = maxDeferredItems;
+	}
+
+	/** Total number of items dropped since this printer was created. */
+	public long droppedItemCount() {
+		return totalDropped.get();
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of expressions waiting to be printed. Rounded up
+	 *            to a power of two.
+	 */
+	public AsyncPrinter(final PrintStream out, final String threadNamePostfix, final int capacity) {
+		this(new PrintStreamSink(out), threadNamePostfix, capacity);
 	}
 
 	public AsyncPrinter(final PrintStream out, final Class<?> threadNameTag) {
 		this(out, threadNameTag.getName());
 	}
 
+	public AsyncPrinter(final Sink sink, final String threadNamePostfix) {
+		this(sink, threadNamePostfix, DEFAULT_CAPACITY);
+	}
+
+	public AsyncPrinter(final Sink sink, final String threadNamePostfix, final int capacity) {
+		super(THREAD_NAME_PREFIX + threadNamePostfix);
+		this.sink = sink;
+		this.queue = new MpscRingBuffer<Expression>(capacity);
+		while (messagePool.offer(new MessageExpression())) {
+			// fill it
+		}
+	}
+
+	/**
+	 * Registers the {@link AsyncPrinterMXBean} under this printer's thread name,
+	 * once the printer thread runs. A newer printer with the same name replaces
+	 * the older one's bean.
+	 */
+	private void registerMXBean() {
+		try {
+			final ObjectName name = new ObjectName("com.linfords.swing.util:type=AsyncPrinter,name="
+					+ ObjectName.quote(getName()));
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			synchronized (MXBEAN_OWNERS) {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+				server.registerMBean(metrics, name);
+				MXBEAN_OWNERS.put(name, this);
+			}
+			mxBeanName = name;
+		} catch (JMException e) {
+			System.err.println("Thread '" + getName() + "' will run without its MXBean. Exception: " + e);
+		}
+	}
+
+	/** The bean this printer registers, whether or not it is registered. */
+	AsyncPrinterMXBean getMetrics() {
+		return metrics;
+	}
+
+	/** Unregisters this printer's bean, unless a newer printer's has replaced it. */
+	private void unregisterMXBean() {
+		if (mxBeanName == null) {
+			return;
+		}
+		synchronized (MXBEAN_OWNERS) {
+			if (MXBEAN_OWNERS.get(mxBeanName) != this) {
+				return;
+			}
+			MXBEAN_OWNERS.remove(mxBeanName);
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mxBeanName);
+			} catch (JMException e) {
+				// Unregistered by someone else.
+			}
+		}
+	}
+
+	/**
+	 * Destination for rendered output. Only ever called from the printer thread,
+	 * so implementations need not be thread safe.
+	 */
+	public static interface Sink {
+		/**
+		 * Writes the bytes between {@code rendered.position()} and
+		 * {@code rendered.limit()}. The buffer is reused after this returns.
+		 */
+		void write(ByteBuffer rendered) throws IOException;
+
+		void close() throws IOException;
+	}
+
+	/**
+	 * The original behaviour: everything goes to a {@code PrintStream}, usually
+	 * {@code System.out}.
+	 */
+	public static class PrintStreamSink implements Sink {
+		private final PrintStream out;
+
+		public PrintStreamSink(final PrintStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(ByteBuffer rendered) {
+			out.write(rendered.array(), rendered.arrayOffset() + rendered.position(), rendered.remaining());
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes to any {@code OutputStream}, for example a socket's, and closes it
+	 * when the printer stops.
+	 */
+	public static class OutputStreamSink implements Sink {
+		private final OutputStream out;
+
+		public OutputStreamSink(final OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(ByteBuffer rendered) throws IOException {
+			out.write(rendered.array(), rendered.arrayOffset() + rendered.position(), rendered.remaining());
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
 	public void requestStop() {
-		notDone = true;
+		notDone = false;
 		// Allow method 'run()' to complete gracefully if it is blocking on
 		// 'queue.take()'
 		add("");
 	}
 
 	public void run() {
+		registerMXBean();
+
+		// The ring buffer is FIFO by arrival. Re-establish creation order here, on the
+		// one consumer thread, where the heap needs no locking. Only whatever has
+		// arrived so far is ordered; that is exactly what the old
+		// PriorityBlockingQueue did.
+		final PriorityQueue<Expression> pending = new PriorityQueue<Expression>();
+
 		// Try block is to catch unhandled exceptions generated by calls to method 'eval()'.
 		// Also, method 'take' may throw InterruptedException for some unspecified reason.
 		while (notDone) {
 			try {
-				// Method 'take' blocks if the 'queue' is empty.
-				out.println(queue.take().eval());
+				if (pending.isEmpty()) {
+					final DuplicateSuppressor suppressor = duplicates;
+					final long summaryWaitNanos = ((batch.length() == 0) && (suppressor != null))
+							? suppressor.nanosUntilSummary(System.nanoTime()) : -1;
+					if ((batch.length() == 0) && (summaryWaitNanos < 0)) {
+						// Method 'take' blocks if the 'queue' is empty.
+						pending.add(queue.take());
+					} else if (batch.length() == 0) {
+						// Nothing is buffered, but a run of repeats is waiting to be
+						// summed up. Wake for it even if nothing else arrives.
+						Expression next = (summaryWaitNanos > 0)
+								? queue.poll(summaryWaitNanos, TimeUnit.NANOSECONDS) : queue.poll();
+						if (next == null) {
+							batchStartNanos = System.nanoTime();
+							suppressor.appendExpired(batch, batchStartNanos, LINE_SEPARATOR);
+							continue;
+						}
+						pending.add(next);
+					} else {
+						// Something is buffered. Wait no longer than its latency
+						// allowance for more to arrive.
+						long waitNanos = FLUSH_LATENCY_NANOS - (System.nanoTime() - batchStartNanos);
+						Expression next = (waitNanos > 0) ? queue.poll(waitNanos, TimeUnit.NANOSECONDS) : null;
+						if (next == null) {
+							flushBatch();
+							continue;
+						}
+						pending.add(next);
+					}
+				}
+
+				queue.drainTo(pending);
+				while (!pending.isEmpty()) {
+					process(pending.poll());
+				}
+
+				if (!queue.isEmpty()) {
+					// More is coming: let running evaluations overlap with it and
+					// emit only what is ready.
+					emitReady();
+				} else {
+					drainWindow();
+					// The backlog has cleared; own up to anything lost getting here.
+					appendDropReport();
+					final DuplicateSuppressor suppressor = duplicates;
+					if (suppressor != null) {
+						if (batch.length() == 0) {
+							batchStartNanos = System.nanoTime();
+						}
+						suppressor.appendExpired(batch, System.nanoTime(), LINE_SEPARATOR);
+					}
+				}
+
+				if ((batch.length() > 0) && (System.nanoTime() - batchStartNanos >= FLUSH_LATENCY_NANOS)) {
+					flushBatch();
+				}
 			} catch (Exception e) {
 				System.err.println("Unhandled error. Thread '"
 						+ super.getName() + "' will continue. Exception:");
 				e.printStackTrace();
 			}
 		}
+		drainWindow();
+		flushBatch();
+		final ExecutorService pool = evaluators;
+		if (pool != null) {
+			pool.shutdown();
+		}
+		unregisterMXBean();
+		try {
+			sink.close();
+		} catch (IOException e) {
+			System.err.println("Thread '" + super.getName() + "' failed to close its sink. Exception:");
+			e.printStackTrace();
+		}
 	}
 
-	public int deferredItemSize() {
-		return deferredQueue.size();
-	}
+	/**
+	 * Appends {@code output} to the batch, or hands it to an evaluation thread
+	 * if it is expensive. Anything arriving behind a running evaluation waits
+	 * in the window so the output stays in order.
+	 */
+	private void process(final Expression output) {
+		final DuplicateSuppressor suppressor = duplicates;
+		final long identity = (suppressor != null) ? output.identity() : 0;
+		if ((identity != 0) && suppressor.isRepeat(identity, System.nanoTime())) {
+			pendingBytes.addAndGet(-output.reservedBytes);
+			recycle(output);
+			return;
+		}
 
-	public void dropDeferredItems() {
-		deferredQueue.clear();
+		final ExecutorService pool = evaluators;
+		if ((pool != null) && output.isExpensive()) {
+			pendingBytes.addAndGet(-output.reservedBytes);
+			final Evaluation evaluation = new Evaluation(output, output.enqueuedNanos, identity);
+			try {
+				pool.execute(evaluation);
+			} catch (RejectedExecutionException e) {
+				// The pool was just replaced.
+				evaluation.run();
+			}
+			window.addLast(evaluation);
+			inFlight++;
+			while (inFlight > maxInFlight) {
+				emitHead();
+			}
+		} else if (window.isEmpty()) {
+			appendToBatch(output, identity);
+		} else {
+			window.addLast(output);
+		}
 	}
 
-	public void printDeferredItems() {
-		deferredQueue.drainTo(queue);
+	private void drainWindow() {
+		while (!window.isEmpty()) {
+			emitHead();
+		}
 	}
 
-	public void add(final Expression output) {
-		add(output, Action.QUEUE);
+	/** Appends the oldest entries of the window up to the first still running. */
+	private void emitReady() {
+		while (!window.isEmpty()) {
+			final Object head = window.peekFirst();
+			if ((head instanceof Evaluation) && !((Evaluation) head).isDone()) {
+				return;
+			}
+			emitHead();
+		}
 	}
 
-	public void add(final Expression output, final Action action) {
-		if (output == null) {
+	/** Appends the oldest entry of the window, waiting for it if still running. */
+	private void emitHead() {
+		final Object head = window.removeFirst();
+		if (head instanceof Expression) {
+			final Expression output = (Expression) head;
+			appendToBatch(output, (duplicates != null) ? output.identity() : 0);
 			return;
 		}
 
-		if (action == Action.STASH) {
-			deferredQueue.add(output);
-		} else {
-			queue.add(output);
+		inFlight--;
+		final Evaluation evaluation = (Evaluation) head;
+		final StringBuilder rendered;
+		try {
+			rendered = evaluation.get();
+		} catch (ExecutionException e) {
+			System.err.println("Unhandled error in eval(). Thread '"
+					+ super.getName() + "' will continue. Exception:");
+			e.getCause().printStackTrace();
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
 		}
+
+		final int mark = batch.length();
+		batch.append(rendered);
+		noteWritten(evaluation.enqueuedNanos);
+		endLine(mark, evaluation.identity);
 	}
 
-	public void add(final StringBuffer sb) {
-		add(sb, Action.QUEUE);
+	/** An expensive expression rendered on an evaluation thread. */
+	private final class Evaluation extends FutureTask<StringBuilder> {
+		final long enqueuedNanos;
+		final long identity;
+
+		Evaluation(final Expression output, final long enqueuedNanos, final long identity) {
+			super(new Callable<StringBuilder>() {
+				@Override
+				public StringBuilder call() {
+					final long start = System.nanoTime();
+					final StringBuilder sb = new StringBuilder(output.estimatedSize());
+					try {
+						output.appendTo(sb);
+					} finally {
+						recycle(output);
+					}
+					evalNanos.record(System.nanoTime() - start);
+					return sb;
+				}
+			});
+			this.enqueuedNanos = enqueuedNanos;
+			this.identity = identity;
+		}
 	}
 
-	public void add(final StringBuffer sb, final Action action) {
-		if (sb == null) {
+	/**
+	 * Evaluates {@code output} on the printer thread and appends it, as one line,
+	 * to the pending batch. A failing {@code eval()} costs only its own line.
+	 */
+	private void appendToBatch(final Expression output, final long identity) {
+		pendingBytes.addAndGet(-output.reservedBytes);
+
+		final int mark = batch.length();
+		final long start = System.nanoTime();
+		try {
+			output.appendTo(batch);
+			evalNanos.record(System.nanoTime() - start);
+		} catch (Exception e) {
+			batch.setLength(mark);
+			System.err.println("Unhandled error in eval(). Thread '"
+					+ super.getName() + "' will continue. Exception:");
+			e.printStackTrace();
 			return;
+		} finally {
+			recycle(output);
 		}
-
-		add(new Expression() {
-			@Override
-			public Object eval() {
-				return sb;
-			}
-		}, action);
+		noteWritten(output.enqueuedNanos);
+		endLine(mark, identity);
 	}
 
-	public void add(final String string) {
-		add(string, Action.QUEUE);
+	/** Remembers when an expression now in the batch was enqueued. */
+	private void noteWritten(final long enqueuedNanos) {
+		if (batchEntries == batchEnqueueNanos.length) {
+			batchEnqueueNanos = Arrays.copyOf(batchEnqueueNanos, batchEntries * 2);
+		}
+		batchEnqueueNanos[batchEntries++] = enqueuedNanos;
 	}
 
-	public void add(final String string, final Action action) {
-		if (string == null) {
+	/**
+	 * Terminates the line begun at {@code mark}, unless it repeats recent
+	 * output, and flushes a full batch.
+	 */
+	private void endLine(final int mark, final long identity) {
+		final DuplicateSuppressor suppressor = duplicates;
+		if ((suppressor != null) && suppressor.filter(batch, mark, identity, System.nanoTime(), LINE_SEPARATOR)) {
 			return;
 		}
-
-		add(new Expression() {
-			@Override
-			public Object eval() {
-				return string;
-			}
-		}, action);
+		if (mark == 0) {
+			batchStartNanos = System.nanoTime();
+		}
+		batch.append(LINE_SEPARATOR);
+		if (batch.length() >= FLUSH_THRESHOLD_CHARS) {
+			flushBatch();
+		}
 	}
 
-	public void add(final Throwable t) {
-		add(t, Action.QUEUE);
+	private void appendDropReport() {
+		final long newest = droppedNewest.getAndSet(0);
+		final long oldest = droppedOldest.getAndSet(0);
+		final long sampled = droppedSampled.getAndSet(0);
+		final long timedOut = droppedTimedOut.getAndSet(0);
+		final long deferred = droppedDeferred.getAndSet(0);
+		final long rateLimited = droppedRateLimited.getAndSet(0);
+		final long total = newest + oldest + sampled + timedOut + deferred + rateLimited;
+		if (total == 0) {
+			return;
+		}
+
+		if (batch.length() == 0) {
+			batchStartNanos = System.nanoTime();
+		}
+		batch.append("Thread '").append(super.getName()).append("' dropped ").append(total)
+				.append(" items while backlogged: newest(").append(newest)
+				.append(") oldest(").append(oldest)
+				.append(") sampled(").append(sampled)
+				.append(") timedOut(").append(timedOut)
+				.append(") stashed(").append(deferred)
+				.append(") rateLimited(").append(rateLimited)
+				.append(") policy(").append(overflowPolicy).append(")")
+				.append(LINE_SEPARATOR);
 	}
 
-	public void add(final Throwable t, final Action action) {
-		if (t == null) {
+	/**
+	 * Encodes the pending batch and hands it to the {@code Sink} in a single
+	 * write. Both buffers are kept for reuse.
+	 */
+	private void flushBatch() {
+		if (batch.length() == 0) {
 			return;
 		}
 
-		add(new Expression() {
-			@Override
-			public Object eval() {
-				final Writer result = new StringWriter();
-				final PrintWriter printWriter = new PrintWriter(result);
-				t.printStackTrace(printWriter);
-				return result.toString();
-			}
-		}, action);
-	}
+		final int maxBytes = (int) Math.ceil(batch.length() * encoder.maxBytesPerChar());
+		if (encoded.capacity() < maxBytes) {
+			encoded = ByteBuffer.allocate(maxBytes);
+		}
+		encoded.clear();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(batch), encoded, true);
+		encoder.flush(encoded);
 
-	public void add(final Object object) {
-		add(object, Action.QUEUE);
-	}
+		encoded.flip();
 
-	public void add(final Object object, final Action action) {
-		if (object == null) {
-			return;
+		final int bytes = encoded.remaining();
+		final long start = System.nanoTime();
+		try {
+			sink.write(encoded);
+			bytesWritten.addAndGet(bytes);
+			batchesWritten.incrementAndGet();
+		} catch (IOException e) {
+			System.err.println("Thread '" + super.getName() + "' failed to write "
+					+ encoded.remaining() + " bytes and will continue. Exception:");
+			e.printStackTrace();
+		}
+		final long end = System.nanoTime();
+		sinkWriteNanos.record(end - start);
+		for (int i = 0; i < batchEntries; i++) {
+			enqueueToWriteNanos.record(end - batchEnqueueNanos[i]);
 		}
+		batchEntries = 0;
 
-		add(new Expression() {
-			@Override
-			public Object eval() {
-				return object;
-			}
-		}, action);
+		batch.setLength(0);
+		if (batch.capacity() > 4 * FLUSH_THRESHOLD_CHARS) {
+			// One enormous expression shouldn't pin its buffer forever.
+			batch.trimToSize();
+			encoded = ByteBuffer.allocate(FLUSH_THRESHOLD_CHARS);
+		}
 	}
 
-	public void add(final ThreadInfo ti) {
-		add(ti, Action.QUEUE);
-	}
+	/**
+	 * Number of items stashed by the calling thread in its current stash scope.
+	 * 
+	 * @see #openStash()
+	 */
+	public int deferredItemSize() {
+		final StashStack stack = stashes.get();
+		return (stack.depth == 0) ? 0 : stack.scopes.get(stack.depth - 1).size();
+	}
+
+	/** Rolls back the calling thread's current stash scope. */
+	public void dropDeferredItems() {
+		if (stashes.get().depth > 0) {
+			currentStash().rollback();
+		}
+	}
+
+	/** Commits the calling thread's current stash scope. */
+	public void printDeferredItems() {
+		if (stashes.get().depth > 0) {
+			currentStash().commit();
+		}
+	}
+
+	public void add(final Expression output) {
+		add(output, Action.QUEUE);
+	}
+
+	public void add(final Expression output, final Action action) {
+		if (output == null) {
+			return;
+		}
+
+		if (action == Action.STASH) {
+			currentStash().add(output);
+		} else {
+			enqueue(output);
+		}
+	}
+
+	/**
+	 * Lock-free hand-off to the printer thread. If the printer is backlogged the
+	 * {@code OverflowPolicy} decides what gives.
+	 */
+	private void enqueue(final Expression output) {
+		final String category = output.category();
+		if (category != null) {
+			final TokenBucket limit = rateLimits.get(category);
+			if ((limit != null) && !limit.tryAcquire()) {
+				recycle(output);
+				countDrop(droppedRateLimited);
+				return;
+			}
+		}
+
+		output.reservedBytes = output.estimatedSize();
+		output.enqueuedNanos = System.nanoTime();
+		if (tryEnqueue(output)) {
+			return;
+		}
+
+		switch (overflowPolicy) {
+		case DROP_NEWEST:
+			recycle(output);
+			countDrop(droppedNewest);
+			return;
+		case DROP_OLDEST:
+			while (!tryEnqueue(output)) {
+				Expression oldest = queue.poll();
+				if (oldest == null) {
+					// The budget is held by items the printer has already taken
+					// and not yet written. Nothing queued can make room.
+					recycle(output);
+					countDrop(droppedNewest);
+					return;
+				}
+				pendingBytes.addAndGet(-oldest.reservedBytes);
+				recycle(oldest);
+				countDrop(droppedOldest);
+			}
+			return;
+		case SAMPLE:
+			if (sampleCounter.incrementAndGet() % sampleRate != 0) {
+				recycle(output);
+				countDrop(droppedSampled);
+				return;
+			}
+			// The sampled item gets the same chance as BLOCK.
+			enqueueOrTimeOut(output);
+			return;
+		case BLOCK:
+		default:
+			enqueueOrTimeOut(output);
+		}
+	}
+
+	private void enqueueOrTimeOut(final Expression output) {
+		if (!blockingEnqueue(output)) {
+			recycle(output);
+			countDrop(droppedTimedOut);
+		}
+	}
+
+	private boolean tryEnqueue(final Expression output) {
+		final long before = pendingBytes.getAndAdd(output.reservedBytes);
+		if ((before > 0) && (before + output.reservedBytes > maxPendingBytes)) {
+			pendingBytes.addAndGet(-output.reservedBytes);
+			return false;
+		}
+		if (!queue.offer(output)) {
+			pendingBytes.addAndGet(-output.reservedBytes);
+			return false;
+		}
+		enqueuedCount.incrementAndGet();
+		return true;
+	}
+
+	private boolean blockingEnqueue(final Expression output) {
+		final long deadline = System.nanoTime() + blockTimeoutNanos;
+		do {
+			LockSupport.parkNanos(BLOCK_RETRY_NANOS);
+			if (tryEnqueue(output)) {
+				return true;
+			}
+		} while (System.nanoTime() - deadline < 0);
+		return false;
+	}
+
+	private void countDrop(final AtomicLong cause) {
+		cause.incrementAndGet();
+		totalDropped.incrementAndGet();
+	}
+
+	public void add(final StringBuffer sb) {
+		add(sb, Action.QUEUE);
+	}
+
+	public void add(final StringBuffer sb, final Action action) {
+		if (sb == null) {
+			return;
+		}
+
+		add(expressionOf(sb), action);
+	}
+
+	public void add(final String string) {
+		add(string, Action.QUEUE);
+	}
+
+	public void add(final String string, final Action action) {
+		if (string == null) {
+			return;
+		}
+
+		add(expressionOf(string), action);
+	}
+
+	public void add(final Throwable t) {
+		add(t, Action.QUEUE);
+	}
+
+	public void add(final Throwable t, final Action action) {
+		if (t == null) {
+			return;
+		}
+
+		add(expressionOf(t), action);
+	}
+
+	public void add(final Object object) {
+		add(object, Action.QUEUE);
+	}
+
+	public void add(final Object object, final Action action) {
+		if (object == null) {
+			return;
+		}
+
+		add(expressionOf(object), action);
+	}
+
+	public void add(final ThreadInfo ti) {
+		add(ti, Action.QUEUE);
+	}
 
 	/**
 	 * Returns a string representation of ThreadInfo ti. Copied from the
@@ -198,12 +1020,617 @@ public class AsyncPrinter extends Thread {
 			return;
 		}
 
-		add(new Expression() {
+		add(expressionOf(ti), action);
+	}
+
+	private static Expression expressionOf(final StringBuffer sb) {
+		return new Expression() {
+			@Override
+			public Object eval() {
+				return sb;
+			}
+
+			@Override
+			int estimatedSize() {
+				return sb.length();
+			}
+		};
+	}
+
+	private static Expression expressionOf(final String string) {
+		return new Expression() {
+			@Override
+			public Object eval() {
+				return string;
+			}
+
+			@Override
+			int estimatedSize() {
+				return string.length();
+			}
+		};
+	}
+
+	private static Expression expressionOf(final Throwable t) {
+		return new Expression() {
+			@Override
+			public Object eval() {
+				final Writer result = new StringWriter();
+				final PrintWriter printWriter = new PrintWriter(result);
+				t.printStackTrace(printWriter);
+				return result.toString();
+			}
+
+			@Override
+			protected boolean isExpensive() {
+				return true;
+			}
+
+			@Override
+			protected String category() {
+				return CATEGORY_EXCEPTION;
+			}
+		};
+	}
+
+	private static Expression expressionOf(final Object object) {
+		return new Expression() {
+			@Override
+			public Object eval() {
+				return object;
+			}
+		};
+	}
+
+	private static Expression expressionOf(final ThreadInfo ti) {
+		return new Expression() {
 			@Override
 			public Object eval() {
 				return Util.fullStackTrace(ti);
 			}
-		}, action);
+
+			@Override
+			int estimatedSize() {
+				return DEFAULT_SIZE_ESTIMATE * (1 + ti.getStackTrace().length);
+			}
+
+			@Override
+			protected boolean isExpensive() {
+				return true;
+			}
+
+			@Override
+			protected String category() {
+				return CATEGORY_THREAD_DUMP;
+			}
+
+			@Override
+			long identity() {
+				return Util.fullStackTraceHash(ti);
+			}
+		};
+	}
+
+	/**
+	 * Queues {@code template} with each {@code {}} replaced by the next argument,
+	 * SLF4J style. The entry comes from a pre-allocated pool and formatting is
+	 * done on the printer thread, so nothing is allocated here as long as the
+	 * arguments are primitives or existing objects. Use these in place of string
+	 * concatenation on threads that must stay quick.
+	 */
+	public void addMessage(final String template, final Object arg0) {
+		enqueue(obtainMessage(template).arg(arg0));
+	}
+
+	public void addMessage(final String template, final long arg0) {
+		enqueue(obtainMessage(template).arg(arg0));
+	}
+
+	public void addMessage(final String template, final Object arg0, final Object arg1) {
+		enqueue(obtainMessage(template).arg(arg0).arg(arg1));
+	}
+
+	public void addMessage(final String template, final Object arg0, final long arg1) {
+		enqueue(obtainMessage(template).arg(arg0).arg(arg1));
+	}
+
+	public void addMessage(final String template, final long arg0, final long arg1) {
+		enqueue(obtainMessage(template).arg(arg0).arg(arg1));
+	}
+
+	public void addMessage(final String template, final Object arg0, final Object arg1, final Object arg2) {
+		enqueue(obtainMessage(template).arg(arg0).arg(arg1).arg(arg2));
+	}
+
+	private MessageExpression obtainMessage(final String template) {
+		MessageExpression message = messagePool.poll();
+		if (message == null) {
+			// Pool exhausted by a burst. The entry joins the pool when it's done.
+			message = new MessageExpression();
+		} else {
+			message.resequence();
+		}
+		message.template = (template == null) ? "null" : template;
+		return message;
+	}
+
+	/**
+	 * Returns a pooled entry once nothing refers to it. Anything else is left to
+	 * the garbage collector.
+	 */
+	private void recycle(final Expression output) {
+		if (output instanceof MessageExpression) {
+			final MessageExpression message = (MessageExpression) output;
+			message.clear();
+			messagePool.offer(message);
+		}
+	}
+
+	/**
+	 * A reusable {@code addMessage} entry. Primitive arguments are kept in a
+	 * {@code long[]} so they are never boxed.
+	 */
+	private static final class MessageExpression extends Expression {
+		private String template = null;
+		private int argCount = 0;
+		private final boolean[] isLong = new boolean[MAX_MESSAGE_ARGS];
+		private final long[] longArgs = new long[MAX_MESSAGE_ARGS];
+		private final Object[] objectArgs = new Object[MAX_MESSAGE_ARGS];
+
+		MessageExpression arg(final long value) {
+			isLong[argCount] = true;
+			longArgs[argCount++] = value;
+			return this;
+		}
+
+		MessageExpression arg(final Object value) {
+			isLong[argCount] = false;
+			objectArgs[argCount++] = value;
+			return this;
+		}
+
+		void clear() {
+			template = null;
+			for (int i = 0; i < argCount; i++) {
+				objectArgs[i] = null;
+			}
+			argCount = 0;
+		}
+
+		@Override
+		public Object eval() {
+			final StringBuilder sb = new StringBuilder(estimatedSize());
+			appendTo(sb);
+			return sb.toString();
+		}
+
+		@Override
+		void appendTo(final StringBuilder sb) {
+			int from = 0;
+			for (int i = 0; i < argCount; i++) {
+				final int at = template.indexOf("{}", from);
+				if (at < 0) {
+					break;
+				}
+				sb.append(template, from, at);
+				if (isLong[i]) {
+					sb.append(longArgs[i]);
+				} else {
+					sb.append(objectArgs[i]);
+				}
+				from = at + 2;
+			}
+			sb.append(template, from, template.length());
+		}
+
+		@Override
+		int estimatedSize() {
+			return template.length() + 16 * argCount;
+		}
+
+		/** Known only if every object argument renders as its value. */
+		@Override
+		long identity() {
+			long hash = DuplicateSuppressor.mix(DuplicateSuppressor.SEED, template.hashCode());
+			for (int i = 0; i < argCount; i++) {
+				final Object arg = objectArgs[i];
+				if (isLong[i]) {
+					hash = DuplicateSuppressor.mix(hash, longArgs[i]);
+				} else if ((arg instanceof String) || (arg instanceof Number) || (arg instanceof Enum<?>)) {
+					hash = DuplicateSuppressor.mix(hash, arg.toString().hashCode());
+				} else {
+					return 0;
+				}
+			}
+			return hash;
+		}
+	}
+
+	/**
+	 * Opens a stash scope for the calling thread. Lines added to it are held back
+	 * until the scope is committed, at which point they are printed as one
+	 * contiguous block, or rolled back, at which point they are discarded.
+	 * <p>
+	 * Scopes belong to the thread that opened them, so concurrent analyses can
+	 * no longer commit or discard each other's lines. They nest: committing an
+	 * inner scope hands its lines to the enclosing scope rather than printing
+	 * them. Each thread reuses its scope objects and their buffers, so the stash
+	 * path takes no lock.
+	 * <p>
+	 * Typical use:
+	 * 
+	 * <pre>
+	 * StashScope stash = aout.openStash();
+	 * try {
+	 *    stash.add(...);
+	 * } finally {
+	 *    if (worthPrinting) stash.commit(); else stash.rollback();
+	 * }
+	 * </pre>
+	 */
+	public StashScope openStash() {
+		return stashes.get().open();
+	}
+
+	/**
+	 * The calling thread's innermost open scope. {@code Action.STASH} and the
+	 * {@code *DeferredItems} methods use it, opening one if there is none.
+	 */
+	private StashScope currentStash() {
+		final StashStack stack = stashes.get();
+		return (stack.depth == 0) ? stack.open() : stack.scopes.get(stack.depth - 1);
+	}
+
+	private final ThreadLocal<StashStack> stashes = new ThreadLocal<StashStack>() {
+		@Override
+		protected StashStack initialValue() {
+			return new StashStack();
+		}
+	};
+
+	/** One per thread. Scopes above {@code depth} are closed and ready for reuse. */
+	private final class StashStack {
+		private final List<StashScope> scopes = new ArrayList<StashScope>();
+		private int depth = 0;
+
+		private StashScope open() {
+			if (depth == scopes.size()) {
+				scopes.add(new StashScope(this, depth));
+			}
+			StashScope scope = scopes.get(depth++);
+			scope.isOpen = true;
+			return scope;
+		}
+	}
+
+	public final class StashScope {
+		private final StashStack owner;
+		private final int level;
+		private final List<Expression> items = new ArrayList<Expression>();
+		private int reservedBytes = 0;
+		private String category = null;
+		private boolean isOpen = false;
+
+		private StashScope(final StashStack owner, final int level) {
+			this.owner = owner;
+			this.level = level;
+		}
+
+		public int size() {
+			return items.size();
+		}
+
+		/**
+		 * Category of the block this scope commits, for rate limiting. Ignored
+		 * for a nested scope; its items join the enclosing block.
+		 */
+		public void setCategory(final String category) {
+			this.category = category;
+		}
+
+		public void add(final Expression output) {
+			checkInnermost();
+			if (output == null) {
+				return;
+			}
+			if (items.size() >= maxDeferredItems) {
+				recycle(output);
+				countDrop(droppedDeferred);
+				return;
+			}
+			items.add(output);
+			stashedItems.incrementAndGet();
+			reservedBytes += output.estimatedSize();
+		}
+
+		public void add(final StringBuffer sb) {
+			if (sb != null) {
+				add(expressionOf(sb));
+			}
+		}
+
+		public void add(final String string) {
+			if (string != null) {
+				add(expressionOf(string));
+			}
+		}
+
+		public void add(final Throwable t) {
+			if (t != null) {
+				add(expressionOf(t));
+			}
+		}
+
+		public void add(final Object object) {
+			if (object != null) {
+				add(expressionOf(object));
+			}
+		}
+
+		public void add(final ThreadInfo ti) {
+			if (ti != null) {
+				add(expressionOf(ti));
+			}
+		}
+
+		/** @see AsyncPrinter#addMessage(String, Object) */
+		public void addMessage(final String template, final Object arg0) {
+			add(obtainMessage(template).arg(arg0));
+		}
+
+		public void addMessage(final String template, final long arg0) {
+			add(obtainMessage(template).arg(arg0));
+		}
+
+		public void addMessage(final String template, final Object arg0, final Object arg1) {
+			add(obtainMessage(template).arg(arg0).arg(arg1));
+		}
+
+		public void addMessage(final String template, final Object arg0, final long arg1) {
+			add(obtainMessage(template).arg(arg0).arg(arg1));
+		}
+
+		public void addMessage(final String template, final long arg0, final long arg1) {
+			add(obtainMessage(template).arg(arg0).arg(arg1));
+		}
+
+		public void addMessage(final String template, final Object arg0, final Object arg1, final Object arg2) {
+			add(obtainMessage(template).arg(arg0).arg(arg1).arg(arg2));
+		}
+
+		/**
+		 * Publishes everything in this scope, in creation order, and closes it.
+		 * An empty scope publishes nothing.
+		 */
+		public void commit() {
+			checkInnermost();
+			try {
+				if (items.isEmpty()) {
+					return;
+				}
+				if (level > 0) {
+					StashScope parent = owner.scopes.get(level - 1);
+					parent.items.addAll(items);
+					parent.reservedBytes += reservedBytes;
+				} else {
+					stashedItems.addAndGet(-items.size());
+					final Expression[] block = items.toArray(new Expression[items.size()]);
+					Arrays.sort(block);
+					enqueue(new StashBlock(block, reservedBytes, category));
+				}
+			} finally {
+				close();
+			}
+		}
+
+		/** Discards everything in this scope and closes it. */
+		public void rollback() {
+			checkInnermost();
+			for (int i = 0; i < items.size(); i++) {
+				recycle(items.get(i));
+			}
+			stashedItems.addAndGet(-items.size());
+			close();
+		}
+
+		private void close() {
+			items.clear();
+			reservedBytes = 0;
+			category = null;
+			isOpen = false;
+			owner.depth--;
+		}
+
+		private void checkInnermost() {
+			if (!isOpen || (owner.depth != level + 1) || (stashes.get() != owner)) {
+				throw new IllegalStateException("Stash scope used after it was closed, out of order, or from another thread");
+			}
+		}
+	}
+
+	/**
+	 * A committed stash scope. One entry in the queue, so nothing can be
+	 * printed in the middle of it.
+	 */
+	private final class StashBlock extends Expression {
+		private final Expression[] items;
+		private final int size;
+		private final boolean expensive;
+		private final String category;
+
+		StashBlock(final Expression[] items, final int size, final String category) {
+			this.items = items;
+			this.size = size;
+			this.category = category;
+			boolean anyExpensive = false;
+			for (Expression item : items) {
+				anyExpensive |= item.isExpensive();
+			}
+			this.expensive = anyExpensive;
+		}
+
+		@Override
+		public Object eval() {
+			final StringBuilder sb = new StringBuilder(size);
+			for (int i = 0; i < items.length; i++) {
+				if (i > 0) {
+					sb.append(LINE_SEPARATOR);
+				}
+				sb.append(items[i].eval());
+			}
+			return sb;
+		}
+
+		@Override
+		void appendTo(final StringBuilder sb) {
+			for (int i = 0; i < items.length; i++) {
+				if (i > 0) {
+					sb.append(LINE_SEPARATOR);
+				}
+				items[i].appendTo(sb);
+			}
+			for (int i = 0; i < items.length; i++) {
+				recycle(items[i]);
+				items[i] = null;
+			}
+		}
+
+		@Override
+		int estimatedSize() {
+			return size;
+		}
+
+		@Override
+		protected boolean isExpensive() {
+			return expensive;
+		}
+
+		@Override
+		protected String category() {
+			return category;
+		}
+
+		@Override
+		long identity() {
+			long hash = DuplicateSuppressor.SEED;
+			for (Expression item : items) {
+				final long itemIdentity = item.identity();
+				if (itemIdentity == 0) {
+					return 0;
+				}
+				hash = DuplicateSuppressor.mix(hash, itemIdentity);
+			}
+			return hash;
+		}
+	}
+
+	/** The {@link AsyncPrinterMXBean} of this printer. */
+	private final class Metrics implements AsyncPrinterMXBean {
+		private long rateStartNanos = System.nanoTime();
+		private long rateStartCount = 0;
+
+		@Override
+		public int getQueueDepth() {
+			return queue.size();
+		}
+
+		@Override
+		public int getQueueCapacity() {
+			return queue.capacity();
+		}
+
+		@Override
+		public int getDeferredDepth() {
+			return stashedItems.get();
+		}
+
+		@Override
+		public long getPendingBytes() {
+			return pendingBytes.get();
+		}
+
+		@Override
+		public long getEnqueuedCount() {
+			return enqueuedCount.get();
+		}
+
+		@Override
+		public synchronized double getEnqueueRate() {
+			final long now = System.nanoTime();
+			final long count = enqueuedCount.get();
+			final double rate = (count - rateStartCount) * (double) Util.NANOS_PER_SEC
+					/ Math.max(1, now - rateStartNanos);
+			rateStartNanos = now;
+			rateStartCount = count;
+			return rate;
+		}
+
+		@Override
+		public long getDroppedCount() {
+			return totalDropped.get();
+		}
+
+		@Override
+		public long getBytesWritten() {
+			return bytesWritten.get();
+		}
+
+		@Override
+		public long getBatchesWritten() {
+			return batchesWritten.get();
+		}
+
+		@Override
+		public long getEvalCount() {
+			return evalNanos.count();
+		}
+
+		@Override
+		public long getEvalMeanNanos() {
+			return evalNanos.mean();
+		}
+
+		@Override
+		public long getEvalP99Nanos() {
+			return evalNanos.percentile(99);
+		}
+
+		@Override
+		public long getEvalMaxNanos() {
+			return evalNanos.max();
+		}
+
+		@Override
+		public long getEnqueueToWriteP50Nanos() {
+			return enqueueToWriteNanos.percentile(50);
+		}
+
+		@Override
+		public long getEnqueueToWriteP99Nanos() {
+			return enqueueToWriteNanos.percentile(99);
+		}
+
+		@Override
+		public long getEnqueueToWriteMaxNanos() {
+			return enqueueToWriteNanos.max();
+		}
+
+		@Override
+		public long getSinkWriteP99Nanos() {
+			return sinkWriteNanos.percentile(99);
+		}
+
+		@Override
+		public long getSinkWriteMaxNanos() {
+			return sinkWriteNanos.max();
+		}
+
+		@Override
+		public void resetHistograms() {
+			evalNanos.reset();
+			enqueueToWriteNanos.reset();
+			sinkWriteNanos.reset();
+		}
 	}
 
 	/**
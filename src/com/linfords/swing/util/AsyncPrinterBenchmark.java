@@ -0,0 +1,347 @@
+package com.linfords.swing.util;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Benchmarks of {@link AsyncPrinter}, run from the command line.
+ * <p>
+ * Usage:
+ * <ul>
+ * <li>{@code java com.linfords.swing.util.AsyncPrinterBenchmark lag [evaluationThreads [seconds]]}
+ * <li>{@code java com.linfords.swing.util.AsyncPrinterBenchmark throughput [producers [seconds]]}
+ * <li>{@code java com.linfords.swing.util.AsyncPrinterBenchmark allocation [messages]}
+ * </ul>
+ * <p>
+ * {@code lag} floods the printer with full thread dumps, as a hang storm does, and
+ * reports how far behind the output falls: the enqueue-to-write latency while the flood
+ * lasts, and how long the printer takes to catch up once it stops. It runs once with
+ * every expression evaluated on the printer thread and once with
+ * {@code evaluationThreads} evaluation threads, 2 by default.
+ * <p>
+ * {@code throughput} compares the printer's queue, a {@link MpscRingBuffer} drained
+ * into a heap on the consumer, with the {@code PriorityBlockingQueue} it replaced. Each
+ * of {@code producers} threads, 4 by default, enqueues sequenced items as fast as it can
+ * while one consumer takes them in sequence order, as the printer thread does.
+ * <p>
+ * {@code allocation} counts the bytes the producer and the printer thread allocate per
+ * message, with {@code com.sun.management.ThreadMXBean}, for {@code addMessage} and for
+ * the string concatenation it replaces. Messages are added in bursts the message pool can
+ * absorb; a burst larger than the pool allocates until the entries come back.
+ */
+public final class AsyncPrinterBenchmark {
+   /** Threads parked at some depth, so each dump has something to render. */
+   private final static int DUMMY_THREADS = 200;
+   private final static int DUMMY_DEPTH = 40;
+   /** A dump of every thread is added this often. */
+   private final static long DUMP_PERIOD_MILLIS = 20;
+   /** Messages added between pauses, fewer than the printer pools. */
+   private final static int MESSAGE_BURST = 500;
+
+   public static void main(final String[] args) throws Exception {
+      if ((args.length < 1) || (args.length > 3)) {
+         usage();
+      }
+      final int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+      if (args[0].equals("lag")) {
+         final int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+         startDummyThreads();
+         lag(0, 1);
+         for (int t : new int[] { 0, threads }) {
+            lag(t, seconds);
+         }
+      }
+      else if (args[0].equals("throughput")) {
+         final int producers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+         for (int round = 0; round < 2; round++) {
+            // The first round is a warm up.
+            final int s = (round == 0) ? 1 : seconds;
+            report(round, "PriorityBlockingQueue", throughput(new BlockingQueueQueue(), producers, s));
+            report(round, "MpscRingBuffer", throughput(new RingQueue(), producers, s));
+         }
+      }
+      else if (args[0].equals("allocation") && (args.length < 3)) {
+         final int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+         for (int round = 0; round < 2; round++) {
+            report(round, "addMessage", allocation(true, messages));
+            report(round, "add(String)", allocation(false, messages));
+         }
+      }
+      else {
+         usage();
+      }
+      System.exit(0);
+   }
+
+   private static void usage() {
+      System.err.println("Usage: java " + AsyncPrinterBenchmark.class.getName()
+            + " lag [evaluationThreads [seconds]] | throughput [producers [seconds]] | allocation [messages]");
+      System.exit(1);
+   }
+
+   /** Runs one flood; the first, short run is a warm up and isn't printed. */
+   private static void lag(final int evaluationThreads, final int seconds) throws InterruptedException {
+      final CountingSink sink = new CountingSink();
+      final AsyncPrinter printer = new AsyncPrinter(sink, "Benchmark");
+      printer.setEvaluationThreads(evaluationThreads);
+      printer.setOverflowPolicy(AsyncPrinter.OverflowPolicy.BLOCK);
+      printer.setBlockTimeout(1, TimeUnit.MINUTES);
+      printer.start();
+
+      final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      long dumps = 0;
+      long next = System.nanoTime();
+      while (System.nanoTime() - end < 0) {
+         for (ThreadInfo ti : threadBean.dumpAllThreads(false, false)) {
+            printer.add(ti);
+         }
+         printer.addMessage("dump #{} added", dumps++);
+         next += TimeUnit.MILLISECONDS.toNanos(DUMP_PERIOD_MILLIS);
+         LockSupport.parkNanos(next - System.nanoTime());
+      }
+      final long floodEnd = System.nanoTime();
+      final AsyncPrinterMXBean metrics = printer.getMetrics();
+      final long p50 = metrics.getEnqueueToWriteP50Nanos();
+      final long p99 = metrics.getEnqueueToWriteP99Nanos();
+      final long max = metrics.getEnqueueToWriteMaxNanos();
+
+      printer.requestStop();
+      printer.join();
+      final long catchUp = System.nanoTime() - floodEnd;
+      if (seconds > 1) {
+         System.out.println("evaluationThreads(" + evaluationThreads + ") dumps(" + dumps + ") written("
+               + (sink.bytes.get() >> 20) + " MB) dropped(" + metrics.getDroppedCount() + ") enqueueToWrite p50("
+               + Util.elapsedNanoFormatterSeconds(p50) + ") p99(" + Util.elapsedNanoFormatterSeconds(p99)
+               + ") max(" + Util.elapsedNanoFormatterSeconds(max) + ") catchUp("
+               + Util.elapsedNanoFormatterSeconds(catchUp) + ")");
+      }
+   }
+
+   private static void report(final int round, final String name, final String result) {
+      if (round > 0) {
+         System.out.println(name + ": " + result);
+      }
+   }
+
+   /**
+    * Runs {@code producers} threads against one consumer for {@code seconds}.
+    *
+    * @return the rate items were taken at, until the last was, and how long producers
+    *         spent enqueuing each
+    */
+   private static String throughput(final Queue queue, final int producers, final int seconds)
+         throws InterruptedException {
+      final AtomicLong sequence = new AtomicLong();
+      final AtomicLong enqueueNanos = new AtomicLong();
+      final long[] taken = new long[1];
+      final Thread consumer = new Thread("Benchmark Consumer") {
+         @Override
+         public void run() {
+            try {
+               while (queue.take().sequence != Long.MAX_VALUE) {
+                  taken[0]++;
+               }
+            }
+            catch (InterruptedException e) {
+               // Finish.
+            }
+         }
+      };
+      consumer.start();
+
+      final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      final List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < producers; i++) {
+         final Thread producer = new Thread("Benchmark Producer " + i) {
+            @Override
+            public void run() {
+               long nanos = 0;
+               while (System.nanoTime() - end < 0) {
+                  for (int j = 0; j < 1000; j++) {
+                     final long start = System.nanoTime();
+                     queue.put(new Item(sequence.getAndIncrement()));
+                     nanos += System.nanoTime() - start;
+                  }
+               }
+               enqueueNanos.addAndGet(nanos);
+            }
+         };
+         threads.add(producer);
+         producer.start();
+      }
+      final long start = System.nanoTime();
+      for (Thread producer : threads) {
+         producer.join();
+      }
+      // Sorts after everything, so the consumer takes it last.
+      queue.put(new Item(Long.MAX_VALUE));
+      consumer.join();
+      final long elapsed = System.nanoTime() - start;
+      final long items = sequence.get();
+      return "items(" + items + ") perSecond(" + (taken[0] * Util.NANOS_PER_SEC / elapsed) + ") enqueueMean("
+            + (enqueueNanos.get() / Math.max(1, items)) + " ns)";
+   }
+
+   /** The one thing both queues are used for here. */
+   private static interface Queue {
+      /** Any thread. Waits for room rather than failing. */
+      void put(Item item);
+
+      /** The consumer. The next item in sequence order of those that have arrived. */
+      Item take() throws InterruptedException;
+   }
+
+   private static final class Item implements Comparable<Item> {
+      final long sequence;
+
+      Item(final long sequence) {
+         this.sequence = sequence;
+      }
+
+      @Override
+      public int compareTo(final Item other) {
+         return (sequence < other.sequence) ? -1 : ((sequence == other.sequence) ? 0 : 1);
+      }
+   }
+
+   /** How the printer used to queue its output. */
+   private static final class BlockingQueueQueue implements Queue {
+      private final BlockingQueue<Item> queue = new PriorityBlockingQueue<Item>();
+
+      @Override
+      public void put(final Item item) {
+         queue.add(item);
+      }
+
+      @Override
+      public Item take() throws InterruptedException {
+         return queue.take();
+      }
+   }
+
+   /** How the printer queues its output now: see {@code AsyncPrinter.run()}. */
+   private static final class RingQueue implements Queue {
+      private final MpscRingBuffer<Item> ring = new MpscRingBuffer<Item>(AsyncPrinter.DEFAULT_CAPACITY);
+      private final PriorityQueue<Item> pending = new PriorityQueue<Item>();
+
+      @Override
+      public void put(final Item item) {
+         while (!ring.offer(item)) {
+            Thread.yield();
+         }
+      }
+
+      @Override
+      public Item take() throws InterruptedException {
+         if (pending.isEmpty()) {
+            pending.add(ring.take());
+            ring.drainTo(pending);
+         }
+         return pending.poll();
+      }
+   }
+
+   /**
+    * Adds {@code messages} messages of two numbers each.
+    *
+    * @return bytes allocated per message by this thread and by the printer's
+    */
+   private static String allocation(final boolean parameterized, final int messages) throws InterruptedException {
+      final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+            .getThreadMXBean();
+      final AsyncPrinter printer = new AsyncPrinter(new CountingSink(), "Benchmark");
+      printer.setOverflowPolicy(AsyncPrinter.OverflowPolicy.BLOCK);
+      printer.setBlockTimeout(1, TimeUnit.MINUTES);
+      printer.start();
+      awaitPrinted(printer);
+
+      final long producerBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      final long printerBefore = threadBean.getThreadAllocatedBytes(printer.getId());
+      for (int i = 0; i < messages; i++) {
+         if (parameterized) {
+            printer.addMessage("dispatch #{} took {} ns", i, 1000L + i);
+         }
+         else {
+            printer.add("dispatch #" + i + " took " + (1000L + i) + " ns");
+         }
+         if ((i % MESSAGE_BURST) == MESSAGE_BURST - 1) {
+            awaitPrinted(printer);
+         }
+      }
+      final long producer = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - producerBefore;
+      awaitPrinted(printer);
+      final long printerBytes = threadBean.getThreadAllocatedBytes(printer.getId()) - printerBefore;
+
+      printer.requestStop();
+      printer.join();
+      return "messages(" + messages + ") producerBytesPerMessage(" + ((double) producer / messages)
+            + ") printerBytesPerMessage(" + ((double) printerBytes / messages) + ")";
+   }
+
+   /**
+    * Waits for the printer to render everything added so far and flush it. The wait
+    * itself allocates a little on both threads, once per burst.
+    */
+   private static void awaitPrinted(final AsyncPrinter printer) throws InterruptedException {
+      final CountDownLatch rendered = new CountDownLatch(1);
+      printer.add(new AsyncPrinter.Expression() {
+         @Override
+         public Object eval() {
+            rendered.countDown();
+            return "";
+         }
+      });
+      rendered.await();
+      // Past the flush latency, so the batch has gone to the sink.
+      Thread.sleep(10);
+   }
+
+   private static void startDummyThreads() {
+      for (int i = 0; i < DUMMY_THREADS; i++) {
+         final Thread t = new Thread("Benchmark Dummy " + i) {
+            @Override
+            public void run() {
+               nest(DUMMY_DEPTH);
+            }
+         };
+         t.setDaemon(true);
+         t.start();
+      }
+   }
+
+   private static void nest(final int depth) {
+      if (depth > 0) {
+         nest(depth - 1);
+      }
+      else {
+         LockSupport.park();
+      }
+   }
+
+   /** Discards the output, counting it. */
+   private static final class CountingSink implements AsyncPrinter.Sink {
+      final AtomicLong bytes = new AtomicLong();
+
+      @Override
+      public void write(final ByteBuffer rendered) throws IOException {
+         bytes.addAndGet(rendered.remaining());
+      }
+
+      @Override
+      public void close() {
+      }
+   }
+}
@@ -0,0 +1,55 @@
+package com.linfords.swing.util;
+
+/**
+ * Health of one {@link AsyncPrinter}, registered as
+ * {@code com.linfords.swing.util:type=AsyncPrinter,name="<thread name>"} while its
+ * printer thread runs. Use it to tell when the diagnostic logger is itself the
+ * bottleneck.
+ * <p>
+ * Times are in nanoseconds. Percentiles are accurate to within 12.5%.
+ */
+public interface AsyncPrinterMXBean {
+   /** Expressions queued and not yet taken by the printer thread. */
+   int getQueueDepth();
+
+   int getQueueCapacity();
+
+   /** Expressions held in open stash scopes, over all threads. */
+   int getDeferredDepth();
+
+   /** Estimated bytes queued or stashed and not yet written. */
+   long getPendingBytes();
+
+   long getEnqueuedCount();
+
+   /** Enqueues per second since the previous call, or since the printer was created. */
+   double getEnqueueRate();
+
+   long getDroppedCount();
+
+   long getBytesWritten();
+
+   long getBatchesWritten();
+
+   long getEvalCount();
+
+   long getEvalMeanNanos();
+
+   long getEvalP99Nanos();
+
+   long getEvalMaxNanos();
+
+   /** Time from enqueue until the sink has written the expression. */
+   long getEnqueueToWriteP50Nanos();
+
+   long getEnqueueToWriteP99Nanos();
+
+   long getEnqueueToWriteMaxNanos();
+
+   long getSinkWriteP99Nanos();
+
+   long getSinkWriteMaxNanos();
+
+   /** Clears the histograms. Counters keep running. */
+   void resetHistograms();
+}
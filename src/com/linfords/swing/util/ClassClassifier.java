@@ -0,0 +1,107 @@
+package com.linfords.swing.util;
+
+import java.awt.Component;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What the monitors need to know about a class named in a stack frame or monitor: is
+ * it an AWT component, is it our code, could its methods be a performance risk.
+ * <p>
+ * The answers are cached by class name, so a risk check over every frame of every
+ * thread costs a map lookup per frame rather than a {@code Class.forName}. Classes are
+ * resolved without being initialized, through this library's class loader and then the
+ * system class loader; a class neither can see is remembered as unresolved. The cache is
+ * cleared if it ever holds {@code MAX_CLASSES} names, which bounds it even when classes
+ * are generated at runtime.
+ */
+final class ClassClassifier {
+   static final ClassClassifier GLOBAL = new ClassClassifier();
+
+   private final static int MAX_CLASSES = 16 * 1024;
+
+   private final static int AWT_COMPONENT = 1;
+   private final static int OUR_CODE = 1 << 1;
+   /** Some {@link Util#isPerformanceRisk} rule names the class; the method decides. */
+   private final static int RISK_CLASS = 1 << 2;
+   private final static int UNRESOLVED = 1 << 3;
+
+   private final ConcurrentHashMap<String, Integer> classes = new ConcurrentHashMap<String, Integer>();
+
+   ClassClassifier() {
+   }
+
+   boolean isAwtComponent(final String className) {
+      return (flags(className) & AWT_COMPONENT) != 0;
+   }
+
+   boolean isOurCode(final String className) {
+      return (flags(className) & OUR_CODE) != 0;
+   }
+
+   /** Whether neither class loader could find the class. */
+   boolean isUnresolved(final String className) {
+      return (flags(className) & UNRESOLVED) != 0;
+   }
+
+   boolean isOurCode(final StackTraceElement frame) {
+      return isOurCode(frame.getClassName());
+   }
+
+   boolean isPerformanceRisk(final StackTraceElement frame) {
+      return ((flags(frame.getClassName()) & RISK_CLASS) != 0) && Util.isPerformanceRisk(frame);
+   }
+
+   private int flags(final String className) {
+      final Integer cached = classes.get(className);
+      if (cached != null) {
+         return cached;
+      }
+      final int flags = classify(className);
+      if (classes.size() >= MAX_CLASSES) {
+         classes.clear();
+      }
+      classes.put(className, flags);
+      return flags;
+   }
+
+   private static int classify(final String className) {
+      int flags = 0;
+      final StackTraceElement probe = new StackTraceElement(className, "", null, -1);
+      if (Util.isEzeniaCode(probe)) {
+         flags |= OUR_CODE;
+      }
+      if (Util.mayBePerformanceRisk(className)) {
+         flags |= RISK_CLASS;
+      }
+
+      final Class<?> c = resolve(className);
+      if (c == null) {
+         flags |= UNRESOLVED;
+      }
+      else if (Component.class.isAssignableFrom(c)) {
+         flags |= AWT_COMPONENT;
+      }
+      return flags;
+   }
+
+   private static Class<?> resolve(final String className) {
+      try {
+         return Class.forName(className, false, ClassClassifier.class.getClassLoader());
+      }
+      catch (ClassNotFoundException e) {
+         // Try the system class loader.
+      }
+      catch (LinkageError e) {
+         return null;
+      }
+      try {
+         return Class.forName(className, false, ClassLoader.getSystemClassLoader());
+      }
+      catch (ClassNotFoundException e) {
+         return null;
+      }
+      catch (LinkageError e) {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,70 @@
+package com.linfords.swing.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the risk checks {@link DispatchAnalyzer} asks for on a thread of its own, so the
+ * watchdog keeps sampling the EDT every few milliseconds. A risk check takes a dump of
+ * every thread with its locked monitors and synchronizers and walks all of it; with a
+ * few hundred threads that spans several sampling intervals, which would leave holes in
+ * the profile of the very hang being checked.
+ * <p>
+ * Checks are handed over through a small bounded queue. When the worker falls behind,
+ * new checks are dropped rather than queued: a later check sees fresher state anyway.
+ * Checks for a dispatch that has ended by the time they come up are skipped by the
+ * analyzer. The worker's CPU time is charged to the {@link DispatchSamplingPolicy}
+ * budget like the watchdog's.
+ */
+final class ContentionAnalysisWorker extends Thread {
+   private static final Logger log = Logger.getLogger(ContentionAnalysisWorker.class.getName());
+
+   private final static int QUEUE_CAPACITY = 4;
+
+   private final BlockingQueue<Runnable> checks = new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY);
+   private final DispatchSamplingPolicy policy;
+
+   ContentionAnalysisWorker(final DispatchSamplingPolicy policy) {
+      super("EDT Contention Analyzer");
+      setDaemon(true);
+      this.policy = policy;
+   }
+
+   /**
+    * Watchdog. Never blocks.
+    *
+    * @return false if the check was dropped because the worker is behind
+    */
+   boolean submit(final Runnable check) {
+      if (checks.offer(check)) {
+         return true;
+      }
+      policy.contentionCheckDropped();
+      return false;
+   }
+
+   @Override
+   public void run() {
+      for (;;) {
+         final Runnable check;
+         try {
+            check = checks.take();
+         }
+         catch (InterruptedException e) {
+            continue;
+         }
+         final long start = DispatchSamplingPolicy.threadNanos();
+         try {
+            check.run();
+         }
+         catch (Exception e) {
+            log.log(Level.WARNING, "Unhandled error during contention analysis", e);
+         }
+         finally {
+            policy.chargeOffThread(DispatchSamplingPolicy.threadNanos() - start);
+         }
+      }
+   }
+}
@@ -1,12 +1,6 @@
 package com.linfords.swing.util;
 
-import static java.lang.String.format;
-import static java.util.Arrays.asList;
-import static java.util.Collections.emptyList;
-
-import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
-import java.lang.management.ThreadMXBean;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -17,6 +11,9 @@ import java.util.TimerTask;
  * Java 1.5 only supports finding monitor based deadlocks. 1.6's
  * {@link java.lang.management.ThreadMXBean} supports {@link java.util.concurrent.locks.Lock} based
  * deadlocks.
+ * <p/>
+ * Checks once a minute with {@link ThreadSnapshotService#findDeadlocked()}, which finds
+ * both without dumping every thread.
  */
 public class DeadlockDetector {
 	private final static AsyncPrinter aout = AsyncPrinter.defaultInstance();
@@ -26,10 +23,8 @@ public class DeadlockDetector {
 		INSTANCE.initTimer();
 	}
 
-	private final ThreadMXBean mbean = ManagementFactory.getThreadMXBean();
-
 	private void analyze() {
-		List<ThreadInfo> deadlocks = findDeadlocks();
+		List<ThreadInfo> deadlocks = ThreadSnapshotService.defaultInstance().findDeadlocked();
 		if (deadlocks.isEmpty()) {
 			return;
 		}
@@ -39,22 +34,21 @@ public class DeadlockDetector {
 	private void printReport(List<ThreadInfo> deadlocks) {
 		aout.add("Deadlock detected\n=================\n");
 		for (ThreadInfo thread : deadlocks) {
-			aout.add(format("\"%s\":", thread.getThreadName()));
-			aout.add(format("  waiting to lock Monitor of %s ",
-					thread.getLockName()));
-			aout.add(format("  which is held by \"%s\"",
-					thread.getLockOwnerName()));
+			aout.addMessage("\"{}\":", thread.getThreadName());
+			aout.addMessage("  waiting to lock Monitor of {} ",
+					thread.getLockName());
+			aout.addMessage("  which is held by \"{}\"",
+					thread.getLockOwnerName());
 			aout.add("");
+			if (EventJournal.isEnabled()) {
+				EventJournal.contention(EventJournal.NO_DISPATCH, "DEADLOCK", thread.getThreadName(),
+						"waiting to lock Monitor of " + thread.getLockName() + " which is held by \""
+								+ thread.getLockOwnerName() + "\"");
+				EventJournal.threadDump(EventJournal.NO_DISPATCH, thread);
+			}
 		}
 	}
 
-	private List<ThreadInfo> findDeadlocks() {
-		long[] monitorDeadlockedThreads = mbean.findMonitorDeadlockedThreads();
-		if (monitorDeadlockedThreads == null)
-			return emptyList();
-		return asList(mbean.getThreadInfo(monitorDeadlockedThreads));
-	}
-
 	/**
 	 * Sets up a timer to check for hangs frequently.
 	 */
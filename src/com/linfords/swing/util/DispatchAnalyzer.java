@@ -1,6 +1,7 @@
 package com.linfords.swing.util;
 
 import java.awt.AWTEvent;
+import java.awt.event.InvocationEvent;
 import java.lang.Thread.State;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MonitorInfo;
@@ -16,7 +17,6 @@ import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
-import com.linfords.swing.util.AsyncPrinter.Action;
 import com.linfords.swing.util.AsyncPrinter.DividerStyle;
 import com.linfords.swing.util.AsyncPrinter.Expression;
 import com.linfords.swing.util.ThreadProfileSynopsis.StackTraceNode;
@@ -31,11 +31,17 @@ class DispatchAnalyzer implements Observer {
    // private final static String EDT_EVENT_QUEUE_PREFIX = "AWT-EventQueue";
    private final static String STACK_INDENT = "   ";
 
+   /**
+    * AsyncPrinter category of each per-thread block of a risk check, except blocks with a
+    * HIGH finding, which are never rate limited.
+    */
+   final static String CATEGORY_CONTENTION = "contention";
+
    /** Elapsed time interval for forced logging prior to dispatch completion. */
    private final static long UNREASONABLE_DISPATCH_FORCED_LOGGING_INTERVAL_NANOS = Util.NANOS_PER_SEC * 1;
 
    /** An "unreasonable dispatch" will get logged when it finishes. */
-   private final static long UNREASONABLE_DISPATCH_DURATION_NANO = Util.NANO_PER_MILLI * 150;
+   final static long UNREASONABLE_DISPATCH_DURATION_NANO = Util.NANO_PER_MILLI * 150;
 
    /**
     * Checking for clogs also detects risky practices that can lead to clogs. This time
@@ -89,12 +95,11 @@ class DispatchAnalyzer implements Observer {
 
    /**
     * The EDT for this dispatch (for the purpose of getting stack traces). I don't know of
-    * any API for getting the event dispatch thread, but we can assume that it's the
-    * current thread if we're in the middle of dispatching an AWT event... We can't cache
-    * this because the EDT can die and be replaced by a new EDT if there's an uncaught
-    * exception.
+    * any API for getting the event dispatch thread, but the dispatch slot records the
+    * thread that was dispatching the event... We can't cache this because the EDT can die
+    * and be replaced by a new EDT if there's an uncaught exception.
     */
-   final Thread eventDispatchThread = Thread.currentThread();
+   final Thread eventDispatchThread;
 
    /**
     * The last time in milliseconds at which we saw a dispatch on the above thread.
@@ -104,10 +109,17 @@ class DispatchAnalyzer implements Observer {
    /** A unique number in the sequence of all EDT dispatches. */
    final long dispatchID;
    private final AsyncPrinter aout;
+   private final ContentionAnalysisWorker contentionWorker;
    private boolean monitorThreadContention;
    private ThreadInfo dispatchStartThreadInfo;
    private final AWTEvent awtEvent;
 
+   /** Set once the dispatch has ended; pending contention checks are then skipped. */
+   private volatile boolean disposed = false;
+
+   /** Time the event spent in the queue before dispatch, or -1 if unknown. */
+   private volatile long queueWaitNanos = -1;
+
    /**
     * Time spent in native code. We are seeing thread contention and core dumps in native
     * DLLs. At times the entire JVM (not just the EDT) bogs down.
@@ -117,15 +129,25 @@ class DispatchAnalyzer implements Observer {
    private final List<String> classesLoaderActivity = Collections
          .synchronizedList(new ArrayList<String>());
 
-   DispatchAnalyzer(long currentDispatchID, final AWTEvent event,
-         final boolean monitorThreadContention, final AsyncPrinter aout) {
+   /**
+    * Created by the watchdog, not the EDT, once a dispatch has run long enough to be
+    * worth analyzing. Time is still measured from {@code dispatchStartNanos}; thread
+    * contention counts and class loading are only seen from now on.
+    */
+   DispatchAnalyzer(long currentDispatchID, final AWTEvent event, final Thread eventDispatchThread,
+         final long dispatchStartNanos, final boolean monitorThreadContention, final AsyncPrinter aout,
+         final ContentionAnalysisWorker contentionWorker) {
       this.dispatchID = currentDispatchID;
+      this.eventDispatchThread = eventDispatchThread;
 
       this.awtEvent = event;
       this.aout = aout;
+      this.contentionWorker = contentionWorker;
       this.monitorThreadContention = monitorThreadContention;
 
-      this.resetDispatchTimeStamp(System.nanoTime());
+      this.resetDispatchTimeStamp(dispatchStartNanos);
+      EventJournal.dispatchStarted(dispatchID, dispatchNanoTimeStamp, event);
+      EventJournal.stackSample(dispatchID, previousStackNanos, previousStack);
    }
 
    /**
@@ -146,6 +168,21 @@ class DispatchAnalyzer implements Observer {
       }
    }
 
+   /**
+    * Credits the time a nested dispatch took, by pretending this one was redispatched
+    * when the nested one finished. Unlike {@link #resetDispatchTimeStamp(long)} it
+    * captures nothing: the next time slice is compared with the stack sampled before the
+    * nested dispatch began, whose outer frames are still the same.
+    */
+   synchronized void credit(final long resumedNanos) {
+      if (resumedNanos - dispatchNanoTimeStamp > 0) {
+         dispatchNanoTimeStamp = resumedNanos;
+      }
+      if (resumedNanos - previousStackNanos > 0) {
+         previousStackNanos = resumedNanos;
+      }
+   }
+
    @Override
    public void update(Observable o, Object arg) {
       if ((arg == null)
@@ -187,8 +224,16 @@ class DispatchAnalyzer implements Observer {
                   "getNextEvent", false);
    }
 
+   void setQueueWaitNanos(final long queueWaitNanos) {
+      this.queueWaitNanos = queueWaitNanos;
+   }
+
    private String generateNameForThisDispatch() {
-      return "EDT Dispatch #" + dispatchID + " event("
+      final long queued = queueWaitNanos;
+      return "EDT Dispatch #" + dispatchID
+            + ((queued < 0) ? "" : " queued(" + Util.elapsedNanoFormatterSeconds(queued) + ")")
+            + ((awtEvent instanceof InvocationEvent) ? " runnable("
+                  + InvocationAttribution.runnableName((InvocationEvent) awtEvent) + ")" : "") + " event("
             + awtEvent.getClass().getName() + ") eventParam("
             + awtEvent.paramString() + ") sourceClass("
             + awtEvent.getSource().getClass().getName()
@@ -230,6 +275,8 @@ class DispatchAnalyzer implements Observer {
          return;
       }
 
+      EventJournal.stackSample(dispatchID, currentStackNanos, currentStack);
+
       // previousStack is currently set in constructor so the following if
       // should never be true. But
       // I'm not sure it should work that way yet... leaving it in for now.
@@ -294,7 +341,7 @@ class DispatchAnalyzer implements Observer {
                // stack only and should be tossed
                // making note of any that took too much time.
 
-               if ((ci >= 0) && (Util.isEzeniaCode(currentStack[ci]))) {
+               if ((ci >= 0) && (ClassClassifier.GLOBAL.isOurCode(currentStack[ci]))) {
                   ezeniaCodeDetectedDuringDispatch = true;
                }
 
@@ -316,7 +363,7 @@ class DispatchAnalyzer implements Observer {
       }
 
       while (ci >= 0) {
-         if (Util.isEzeniaCode(currentStack[ci--])) {
+         if (ClassClassifier.GLOBAL.isOurCode(currentStack[ci--])) {
             ezeniaCodeDetectedDuringDispatch = true;
          }
       }
@@ -326,7 +373,7 @@ class DispatchAnalyzer implements Observer {
 
       long elapsed = elapsedNanoTimeSinceDispatch();
       if (elapsed > (THREAD_CONTENTION_ANALYSIS_INTERVAL_NANOS * (checkedForEdtClogCount + 1))) {
-         analyzeThreadContention(Risk.HIGH);
+         requestThreadContentionAnalysis(Risk.HIGH, false);
          checkedForEdtClogCount++;
       }
       else if (elapsed > (UNREASONABLE_DISPATCH_FORCED_LOGGING_INTERVAL_NANOS * (dispatchAnalysisLoggedCount + 1))) {
@@ -335,24 +382,49 @@ class DispatchAnalyzer implements Observer {
          }
 
          if (dispatchAnalysisLoggedCount < 2) {
-            analyzeThreadContention(Risk.HIGH);
+            requestThreadContentionAnalysis(Risk.HIGH, true);
          }
          else if (dispatchAnalysisLoggedCount == 2) {
-            analyzeThreadContention(Risk.MEDIUM);
+            requestThreadContentionAnalysis(Risk.MEDIUM, true);
          }
          else if (dispatchAnalysisLoggedCount > 2) {
-            analyzeThreadContention(Risk.INFO);
+            requestThreadContentionAnalysis(Risk.INFO, true);
          }
 
          logCurrentAnalysis("", true); // Event dispatch is still in progress
-         Util.checkForDeadlock(aout);
-         analyzeThreadContention(Risk.INFO);
       }
 
       previousStack = currentStack;
       previousStackNanos = currentStackNanos;
    }
 
+   /**
+    * Hands a risk check to the contention worker, so the thread dump it takes doesn't
+    * delay the next time slice. Everything the check needs from this analyzer is copied
+    * now; the worker never takes this analyzer's lock.
+    *
+    * @param followUp
+    *        also check for deadlocks and then report every thread, as when the dispatch
+    *        is logged while still in progress
+    */
+   private void requestThreadContentionAnalysis(final Risk reportingLevel, final boolean followUp) {
+      final int checkNumber = checkedForEdtClogCount;
+      final boolean tooLong = elapsedNanoTimeSinceDispatch() > UNREASONABLE_DISPATCH_DURATION_NANO;
+      contentionWorker.submit(new Runnable() {
+         @Override
+         public void run() {
+            if (disposed) {
+               return;
+            }
+            analyzeThreadContention(reportingLevel, checkNumber, tooLong);
+            if (followUp) {
+               Util.checkForDeadlock(aout);
+               analyzeThreadContention(Risk.INFO, checkNumber, tooLong);
+            }
+         }
+      });
+   }
+
    /**
     * Returns how long this dispatch has been going on (in milliseconds).
     */
@@ -419,29 +491,29 @@ class DispatchAnalyzer implements Observer {
       if (monitorThreadContention) {
          ThreadInfo currentInfo = THREAD_BEAN
                .getThreadInfo(eventDispatchThread.getId());
-         aout.add(" * blocked count: "
-               + (currentInfo.getBlockedCount() - dispatchStartThreadInfo
-                     .getBlockedCount()));
-         aout.add(" * blocked elapsed time: "
-               + Util.elapsedMillisFormatterSeconds(currentInfo
+         aout.addMessage(" * blocked count: {}",
+               currentInfo.getBlockedCount() - dispatchStartThreadInfo
+                     .getBlockedCount());
+         aout.addMessage(" * blocked elapsed time: {}",
+               Util.elapsedMillisFormatterSeconds(currentInfo
                      .getBlockedTime()
                      - dispatchStartThreadInfo.getBlockedTime()));
-         aout.add(" * wait count: "
-               + (currentInfo.getWaitedCount() - dispatchStartThreadInfo
-                     .getWaitedCount()));
-         aout.add(" * wait elapsed time: "
-               + Util.elapsedMillisFormatterSeconds(currentInfo
+         aout.addMessage(" * wait count: {}",
+               currentInfo.getWaitedCount() - dispatchStartThreadInfo
+                     .getWaitedCount());
+         aout.addMessage(" * wait elapsed time: {}",
+               Util.elapsedMillisFormatterSeconds(currentInfo
                      .getWaitedTime()
                      - dispatchStartThreadInfo.getWaitedTime()));
-         aout.add(" * native elapsed time: "
-               + Util.elapsedNanoFormatterSeconds(nativeNanoTime));
+         aout.addMessage(" * native elapsed time: {}",
+               Util.elapsedNanoFormatterSeconds(nativeNanoTime));
       }
 
       synchronized (classesLoaderActivity) {
-         aout.add(" * classes loaded: " + classesLoaderActivity.size());
+         aout.addMessage(" * classes loaded: {}", classesLoaderActivity.size());
          for (Iterator<String> it = classesLoaderActivity.iterator(); it
                .hasNext();) {
-            aout.add("    " + it.next());
+            aout.addMessage("    {}", it.next());
          }
       }
 
@@ -456,15 +528,21 @@ class DispatchAnalyzer implements Observer {
 
       if (threadSynopsis.size() > 0) {
          final StringBuilder sb = new StringBuilder();
-         sb.append(elapsedForDispatch
-               + " <-- Wall clock time (human perception), profiled:");
+         sb.append(elapsedForDispatch).append(
+               " <-- Wall clock time (human perception), profiled:");
          threadSynopsis.dump(sb, STACK_INDENT);
          aout.add(sb.toString());
          someAnalysis = true;
       }
       else if (!plainStackDumped && (previousStack != null)) {
-         aout.add(" No thread profiling info yet. Last recorded stack:");
-         Util.printStackTrace(previousStack, STACK_INDENT, aout);
+         if (EventJournal.isEnabled()) {
+            // The journal already holds every sampled stack, in binary form.
+            aout.add(" No thread profiling info yet. Last recorded stack is in the event journal.");
+         }
+         else {
+            aout.add(" No thread profiling info yet. Last recorded stack:");
+            Util.printStackTrace(previousStack, STACK_INDENT, aout);
+         }
          someAnalysis = true;
          plainStackDumped = true;
       }
@@ -477,6 +555,8 @@ class DispatchAnalyzer implements Observer {
    }
 
    synchronized void dispose() {
+      disposed = true;
+      final long nowNanos = System.nanoTime();
       boolean unreasonable = elapsedNanoTimeSinceDispatch() > UNREASONABLE_DISPATCH_DURATION_NANO;
 
       if (unreasonable) {
@@ -484,17 +564,48 @@ class DispatchAnalyzer implements Observer {
             hangID = getNewHangNumber();
          }
          logCurrentAnalysis();
+         JfrEvents.hang(dispatchID, hangID, nowNanos - dispatchNanoTimeStamp, awtEvent, cruxFrame());
+      }
+      EventJournal.dispatchEnded(dispatchID, nowNanos, nowNanos - dispatchNanoTimeStamp, hangID);
+   }
+
+   /**
+    * The outermost profiled frame the most time was credited to, or the top of the last
+    * sampled stack if there is no profile yet.
+    */
+   private String cruxFrame() {
+      StackTraceNode crux = null;
+      for (StackTraceNode node : threadSynopsis.values()) {
+         if ((crux == null) || (node.elapsedNanos > crux.elapsedNanos)) {
+            crux = node;
+         }
       }
+      if (crux != null) {
+         return crux.frame.toString();
+      }
+      return ((previousStack != null) && (previousStack.length > 0)) ? previousStack[0].toString() : null;
    }
 
    private static enum Risk {
       INFO, MEDIUM, HIGH
    }
 
-   private void analyzeThreadContention(Risk reportingLevel) {
-      final long[] idArray = THREAD_BEAN.getAllThreadIds();
+   /** Contention worker. Records a finding in the event journal and JFR, if they're on. */
+   private void contentionFound(final Risk risk, final String threadName, final String finding) {
+      EventJournal.contention(dispatchID, risk.name(), threadName, finding);
+      JfrEvents.contention(dispatchID, risk.name(), threadName, finding);
+   }
+
+   /**
+    * Contention worker. Uses only what doesn't change during the dispatch and what
+    * {@link #requestThreadContentionAnalysis} copied for it.
+    */
+   private void analyzeThreadContention(final Risk reportingLevel, final int checkNumber, final boolean tooLong) {
+      // Shared with the other checks and detectors within the same tick.
+      final ThreadSnapshotService.Snapshot snapshot = ThreadSnapshotService.defaultInstance().snapshot();
+      final ThreadInfo[] infoArray = snapshot.getThreadInfos();
 
-      if ((idArray == null) || (idArray.length == 0)) {
+      if (infoArray.length == 0) {
          if (reportingLevel != Risk.INFO) {
             aout.add(EDTPerformanceMonitor.class.getName()
                   + " detected no threads.");
@@ -508,13 +619,10 @@ class DispatchAnalyzer implements Observer {
       // AsyncPrinter's
       // PriorityQueue. Wouldn't want it to appear out of order.
       AsyncPrinter.Divider header = aout.createDivider(
-            " EDT Risk Check #" + checkedForEdtClogCount
+            " EDT Risk Check #" + checkNumber
                   + " for dispatch #" + dispatchID + " ",
             DividerStyle.BEGIN);
 
-      final ThreadInfo[] infoArray = THREAD_BEAN.getThreadInfo(idArray, true,
-            true);
-
       final Set<Long> threadsToDump = new TreeSet<Long>();
       for (ThreadInfo info : infoArray) {
          if (info == null) {
@@ -522,13 +630,14 @@ class DispatchAnalyzer implements Observer {
          }
          String threadName = info.getThreadName();
          Risk detectedRisk = Risk.INFO;
+         final AsyncPrinter.StashScope stash = aout.openStash();
+         ThreadInfo[] dumps = null;
          try {
             if (info.getThreadId() == eventDispatchThread.getId()) {
 
                State threadState = info.getThreadState();
 
-               aout.add("Thread '" + threadName + "' is " + threadState,
-                     Action.STASH);
+               stash.addMessage("Thread '{}' is {}", threadName, threadState);
 
                if (State.RUNNABLE != threadState) {
 
@@ -549,40 +658,42 @@ class DispatchAnalyzer implements Observer {
                      if (!lockName.startsWith("zenClient.tools.DispatchAnalyzer")) {
                         detectedRisk = Risk.MEDIUM;
                      }
-                     aout.add(STACK_INDENT + "on object '" + lockName + "'", Action.STASH);
+                     stash.addMessage(STACK_INDENT + "on object '{}'", lockName);
                   }
                   else {
-                     aout.add(STACK_INDENT + "no object", Action.STASH);
+                     stash.add(STACK_INDENT + "no object");
                   }
 
                   long lockOwnerId = info.getLockOwnerId();
                   if (lockOwnerId > -1) {
-                     aout.add(STACK_INDENT + STACK_INDENT + "object owned by thread '"
-                           + info.getLockOwnerName() + "' thead id '" + lockOwnerId + "'", Action.STASH);
+                     stash.add(STACK_INDENT + STACK_INDENT + "object owned by thread '"
+                           + info.getLockOwnerName() + "' thead id '" + lockOwnerId + "'");
                      if (reportingLevel.compareTo(Risk.MEDIUM) > -1) {
                         threadsToDump.add(lockOwnerId);
                      }
                   }
                   else if (objectMonitorExists) {
-                     aout.add(STACK_INDENT + STACK_INDENT + "object not currently owned by any thread",
-                           Action.STASH);
+                     stash.add(STACK_INDENT + STACK_INDENT + "object not currently owned by any thread");
+                  }
+                  if (detectedRisk == Risk.MEDIUM) {
+                     contentionFound(Risk.MEDIUM, threadName, "EDT " + threadState + " on '" + lockName
+                           + "' owned by thread '" + info.getLockOwnerName() + "'");
                   }
                } // END the EDT is not in a RUNNABLE state
 
                MonitorInfo[] monitorInfos = info.getLockedMonitors();
                if ((monitorInfos != null) && (monitorInfos.length > 0)) {
-                  aout.add("Thread '" + threadName + "' has locked monitors:", Action.STASH);
+                  stash.addMessage("Thread '{}' has locked monitors:", threadName);
                   for (MonitorInfo mi : monitorInfos) {
-                     aout.add(STACK_INDENT + threadName + " has locked: " + mi, Action.STASH);
+                     stash.addMessage(STACK_INDENT + "{} has locked: {}", threadName, mi);
                   }
                }
 
-               boolean tooLong = elapsedNanoTimeSinceDispatch() > UNREASONABLE_DISPATCH_DURATION_NANO;
                if (info.isInNative() && tooLong) {
                   if (reportingLevel == Risk.HIGH) {
                      threadsToDump.add(info.getThreadId());
                   }
-                  aout.add("Thread '" + threadName + "' is in native code, along with threads:", Action.STASH);
+                  stash.addMessage("Thread '{}' is in native code, along with threads:", threadName);
                   boolean otherNative = false;
                   for (ThreadInfo info2 : infoArray) {
                      if (info2 == null) {
@@ -595,18 +706,15 @@ class DispatchAnalyzer implements Observer {
                         if (reportingLevel == Risk.HIGH) {
                            threadsToDump.add(info2.getThreadId());
                         }
-                        aout.add(
-                              STACK_INDENT + "thread '"
-                                    + info2.getThreadName() + "' "
-                                    + info2.getThreadState(),
-                              Action.STASH);
+                        stash.addMessage(STACK_INDENT + "thread '{}' {}",
+                              info2.getThreadName(), info2.getThreadState());
                         MonitorInfo[] monitorInfos2 = info2
                               .getLockedMonitors();
                         if ((monitorInfos2 != null)
                               && (monitorInfos2.length > 0)) {
                            otherNative = true;
                            for (MonitorInfo mi : monitorInfos2) {
-                              aout.add(STACK_INDENT + STACK_INDENT + "has locked: " + mi, Action.STASH);
+                              stash.addMessage(STACK_INDENT + STACK_INDENT + "has locked: {}", mi);
                            }
                         }
                      }
@@ -614,9 +722,11 @@ class DispatchAnalyzer implements Observer {
 
                   if (otherNative) {
                      detectedRisk = Risk.MEDIUM;
+                     contentionFound(Risk.MEDIUM, threadName,
+                           "EDT in native code while other threads in native code hold monitors");
                   }
                   else {
-                     aout.add(STACK_INDENT + "no other threads", Action.STASH);
+                     stash.add(STACK_INDENT + "no other threads");
                   }
                }
             } // END if AWT-EventQueue
@@ -624,26 +734,23 @@ class DispatchAnalyzer implements Observer {
                // Analyze locked monitors of non-EDT threads
                MonitorInfo[] monitorInfos = info.getLockedMonitors();
                if ((monitorInfos != null) && (monitorInfos.length > 0)) {
-                  aout.add("Thread '" + threadName + "' has locked items:", Action.STASH);
+                  stash.addMessage("Thread '{}' has locked items:", threadName);
                   for (MonitorInfo mi : monitorInfos) {
                      String lockedClassName = mi.getClassName();
-                     aout.add(STACK_INDENT + mi, Action.STASH);
-                     try {
-                        Class<?> lockedClass = Class
-                              .forName(lockedClassName);
-                        if (java.awt.Component.class
-                              .isAssignableFrom(lockedClass)) {
-                           // Big risk here. Just asking for an EDT clog.
-                           detectedRisk = Risk.HIGH;
-                           threadsToDump.add(info.getThreadId());
-                           aout.add(STACK_INDENT + STACK_INDENT + "DEADLOCK RISK: AWT component '"
-                                 + lockedClassName + "' locked by thread '" + threadName + "' --at--> "
-                                 + mi.getLockedStackFrame(), Action.STASH);
-                        }
+                     stash.addMessage(STACK_INDENT + "{}", mi);
+                     if (ClassClassifier.GLOBAL.isAwtComponent(lockedClassName)) {
+                        // Big risk here. Just asking for an EDT clog.
+                        detectedRisk = Risk.HIGH;
+                        threadsToDump.add(info.getThreadId());
+                        final String finding = "DEADLOCK RISK: AWT component '" + lockedClassName
+                              + "' locked --at--> " + mi.getLockedStackFrame();
+                        contentionFound(Risk.HIGH, threadName, finding);
+                        stash.add(STACK_INDENT + STACK_INDENT + "DEADLOCK RISK: AWT component '"
+                              + lockedClassName + "' locked by thread '" + threadName + "' --at--> "
+                              + mi.getLockedStackFrame());
                      }
-                     catch (ClassNotFoundException e) {
-                        aout.add(STACK_INDENT + lockedClassName + " "
-                              + e, Action.STASH);
+                     else if (ClassClassifier.GLOBAL.isUnresolved(lockedClassName)) {
+                        stash.add(STACK_INDENT + lockedClassName + " class not found");
                      }
                   }
                }
@@ -655,26 +762,19 @@ class DispatchAnalyzer implements Observer {
                   StackTraceElement[] stack = info.getStackTrace();
                   boolean awtComponentDetected = false;
                   for (int i = 0; i < stack.length; i++) {
-                     try {
-                        Class<?> clazz = Class.forName(stack[i]
-                              .getClassName());
-                        if (java.awt.Component.class
-                              .isAssignableFrom(clazz)) {
-                           if (awtComponentDetected == false) {
-                              awtComponentDetected = true;
-                              aout.add("Thread '" + threadName + "' possible EDT rule violation by calling:",
-                                    Action.STASH);
+                     final String className = stack[i].getClassName();
+                     if (ClassClassifier.GLOBAL.isAwtComponent(className)) {
+                        if (awtComponentDetected == false) {
+                           awtComponentDetected = true;
+                           stash.addMessage("Thread '{}' possible EDT rule violation by calling:", threadName);
 
-                           }
-                           aout.add(STACK_INDENT + " awt component '" + clazz + "' method '"
-                                 + stack[i].getMethodName() + "'");
-                           threadsToDump.add(info.getThreadId());
                         }
+                        stash.addMessage(STACK_INDENT + " awt component 'class {}' method '{}'", className,
+                              stack[i].getMethodName());
+                        threadsToDump.add(info.getThreadId());
                      }
-                     catch (ClassNotFoundException e) {
-                        aout.add("Thread '" + threadName + "'"
-                              + stack[i].getClassName() + " " + e,
-                              Action.STASH);
+                     else if (ClassClassifier.GLOBAL.isUnresolved(className)) {
+                        stash.addMessage("Thread '{}'{} class not found", threadName, className);
                      }
                   }
                }
@@ -683,36 +783,43 @@ class DispatchAnalyzer implements Observer {
 
             // Dump stack traces of threads mentioned above
             if (threadsToDump.size() > 0) {
-               aout.add("", Action.STASH);
-               long[] ids = new long[threadsToDump.size()];
-               Iterator<Long> it = threadsToDump.iterator();
-               for (int i = 0; i < ids.length; i++) {
-                  ids[i] = it.next();
+               stash.add("");
+               // From the snapshot: threads that have died since are left out.
+               List<ThreadInfo> found = new ArrayList<ThreadInfo>(threadsToDump.size());
+               for (Long id : threadsToDump) {
+                  ThreadInfo ti = snapshot.get(id);
+                  if (ti != null) {
+                     found.add(ti);
+                  }
                }
-
-               ThreadInfo[] tis = THREAD_BEAN.getThreadInfo(ids, true,
-                     true);
-               if (tis == null) {
-                  // don't know if happens, but now I'm paranoid
-                  continue;
+               ThreadInfo[] tis = found.toArray(new ThreadInfo[found.size()]);
+               if (EventJournal.isEnabled()) {
+                  // Written to the journal only if this stash is committed, see below.
+                  dumps = tis;
+                  stash.addMessage("{} thread dump(s) written to the event journal.", tis.length);
                }
-               for (int i = 0; i < ids.length; i++) {
-                  aout.add(tis[i], Action.STASH); // silently ignores
-                  // nulls and just
-                  // returns
+               else {
+                  for (ThreadInfo ti : tis) {
+                     stash.add(ti);
+                  }
                }
             }
          }
          finally {
             threadsToDump.clear();
-            if (detectedRisk.compareTo(reportingLevel) > -1) {
-               if (aout.deferredItemSize() > 0) {
-                  header.printFirstTimeOnly();
-                  aout.printDeferredItems();
+            if ((detectedRisk.compareTo(reportingLevel) > -1) && (stash.size() > 0)) {
+               header.printFirstTimeOnly();
+               // A rate limit may thin out lesser findings but never a deadlock risk.
+               stash.setCategory((detectedRisk == Risk.HIGH) ? null : CATEGORY_CONTENTION);
+               stash.commit();
+               if (dumps != null) {
+                  for (ThreadInfo ti : dumps) {
+                     EventJournal.threadDump(dispatchID, ti);
+                  }
                }
             }
             else {
-               aout.dropDeferredItems();
+               stash.rollback();
             }
          }
       } // END for (ThreadInfo info : infoArray)
@@ -0,0 +1,89 @@
+package com.linfords.swing.util;
+
+import java.awt.EventQueue;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures what {@link EDTPerformanceMonitor} adds to every event it dispatches: EDT CPU
+ * time and bytes allocated on the EDT per event. It posts short {@code invokeLater}
+ * tasks in bursts, first to the plain event queue and then with the monitor installed,
+ * and reports both and the difference. Runs headless.
+ * <p>
+ * Usage: {@code java -Djava.awt.headless=true com.linfords.swing.util.DispatchBenchmark [events]}
+ */
+public final class DispatchBenchmark {
+   /** Tasks posted before waiting for the EDT to run them. */
+   private final static int BURST = 1000;
+
+   private final static com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+         .getThreadMXBean();
+
+   private static final Runnable NOTHING = new Runnable() {
+      @Override
+      public void run() {
+      }
+   };
+
+   public static void main(final String[] args) throws Exception {
+      if (args.length > 1) {
+         System.err.println("Usage: java " + DispatchBenchmark.class.getName() + " [events]");
+         System.exit(1);
+      }
+      final int events = (args.length == 1) ? Integer.parseInt(args[0]) : 500000;
+
+      // The first run of each is a warm up.
+      run(events);
+      final Result plain = run(events);
+      System.out.println("plain:     " + plain);
+
+      EDTPerformanceMonitor.initMonitoring(new LoggingClassLoader());
+      run(events);
+      final Result monitored = run(events);
+      System.out.println("monitored: " + monitored);
+      System.out.println("overhead:  cpuPerEvent(" + (monitored.cpuNanosPerEvent - plain.cpuNanosPerEvent)
+            + " ns) bytesPerEvent(" + (monitored.bytesPerEvent - plain.bytesPerEvent) + ")");
+      System.exit(0);
+   }
+
+   private static Result run(final int events) throws Exception {
+      final long edt = edtId();
+      final long cpuBefore = threadBean.getThreadCpuTime(edt);
+      final long bytesBefore = threadBean.getThreadAllocatedBytes(edt);
+      for (int i = 0; i < events; i += BURST) {
+         for (int j = 0; j < BURST; j++) {
+            EventQueue.invokeLater(NOTHING);
+         }
+         EventQueue.invokeAndWait(NOTHING);
+      }
+      // Each burst's invokeAndWait is dispatched too.
+      final int dispatched = events + (events / BURST);
+      return new Result((double) (threadBean.getThreadCpuTime(edt) - cpuBefore) / dispatched,
+            (double) (threadBean.getThreadAllocatedBytes(edt) - bytesBefore) / dispatched);
+   }
+
+   private static long edtId() throws Exception {
+      final long[] id = new long[1];
+      EventQueue.invokeAndWait(new Runnable() {
+         @Override
+         public void run() {
+            id[0] = Thread.currentThread().getId();
+         }
+      });
+      return id[0];
+   }
+
+   private static final class Result {
+      final double cpuNanosPerEvent;
+      final double bytesPerEvent;
+
+      Result(final double cpuNanosPerEvent, final double bytesPerEvent) {
+         this.cpuNanosPerEvent = cpuNanosPerEvent;
+         this.bytesPerEvent = bytesPerEvent;
+      }
+
+      @Override
+      public String toString() {
+         return "cpuPerEvent(" + (long) cpuNanosPerEvent + " ns) bytesPerEvent(" + bytesPerEvent + ")";
+      }
+   }
+}
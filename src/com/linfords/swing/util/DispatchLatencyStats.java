@@ -0,0 +1,478 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.event.InputEvent;
+import java.awt.event.InvocationEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.PaintEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Duration of every EDT dispatch, in a {@link LatencyHistogram} per event class, event
+ * ID and source class. Where {@link DispatchAnalyzer} reports only the hangs, this shows
+ * the whole distribution, including the 20 to 150 ms dispatches that make a UI feel
+ * sluggish without ever being reported.
+ * <p>
+ * Events are also timestamped when posted, which gives per type the time spent waiting
+ * in the queue and the backlog: how many of the type were queued at once. Input lag is
+ * as often a flood of {@code invokeLater}s ahead of the input as one slow handler.
+ * <p>
+ * Native mouse and key events never pass through {@link EDTPerformanceMonitor#postEvent}:
+ * the toolkit posts them to the original queue, which forwards them to the pushed one
+ * privately. Their queue wait is taken from {@link InputEvent#getWhen()} instead, the
+ * time the OS stamped them, to the millisecond. They are not counted in backlogs.
+ * <p>
+ * {@link #snapshot()} gives the percentiles at any time. A table of them is also printed
+ * periodically, once a minute unless {@link #setEmitInterval changed}. Counts are since
+ * the start or the last {@link #reset()}.
+ */
+public final class DispatchLatencyStats {
+   private final static AsyncPrinter aout = AsyncPrinter.defaultInstance();
+
+   private final static double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+   /** Further event types are counted together, so a bad source can't grow the map. */
+   private final static int MAX_KEYS = 1024;
+
+   private final static Key OTHER = new Key(AWTEvent.class, -1, null);
+
+   /**
+    * An input event that seems to have waited longer was stamped by a clock other than
+    * {@code System.currentTimeMillis()}; its wait is unknown.
+    */
+   private final static long MAX_INPUT_WAIT_MILLIS = 60 * 1000;
+
+   /** Events posted and not yet dispatched. A power of two. */
+   private final static int POSTED_CAPACITY = 4096;
+
+   private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+   /** Reused for lookups, so recording doesn't allocate. Only the EDT uses it. */
+   private final Key probe = new Key(null, 0, null);
+
+   /** The same for posting threads. */
+   private final ThreadLocal<Key> postProbe = new ThreadLocal<Key>() {
+      @Override
+      protected Key initialValue() {
+         return new Key(null, 0, null);
+      }
+   };
+
+   /**
+    * Posted events by identity hash, for their queue wait. A collision evicts the older
+    * event, which then just goes without one; that bounds what coalesced or removed
+    * events can leave behind. Backlogs are counted separately, so they aren't bounded.
+    */
+   private final AtomicReferenceArray<Posted> posted = new AtomicReferenceArray<Posted>(POSTED_CAPACITY);
+
+   private Timer timer = null;
+   private final AtomicLong emittedAtCount = new AtomicLong(-1);
+
+   DispatchLatencyStats() {
+   }
+
+   /**
+    * Any thread. Called just before the event is posted.
+    */
+   void posted(final AWTEvent event, final long nowNanos) {
+      final Entry entry = entryFor(event, postProbe.get());
+      if (!mayCoalesce(event)) {
+         entry.backlogDepth.record(entry.backlog.incrementAndGet());
+      }
+      posted.set(indexOf(event), new Posted(event, nowNanos, entry));
+   }
+
+   /**
+    * EDT only. Called as the event is dispatched.
+    *
+    * @return how long the event waited in the queue, or -1 if it wasn't seen posted
+    */
+   long dispatched(final AWTEvent event, final long nowNanos) {
+      final int i = indexOf(event);
+      final Posted p = posted.get(i);
+      final boolean found = (p != null) && (p.event == event) && posted.compareAndSet(i, p, null);
+      final Entry entry = found ? p.entry : entryFor(event, probe);
+
+      if (!mayCoalesce(event)) {
+         // Events posted before this queue was pushed were never counted.
+         int b;
+         do {
+            b = entry.backlog.get();
+         } while ((b > 0) && !entry.backlog.compareAndSet(b, b - 1));
+      }
+
+      if (!found) {
+         final long waitNanos = inputWaitNanos(event);
+         if (waitNanos >= 0) {
+            entry.queueWait.record(waitNanos);
+         }
+         return waitNanos;
+      }
+      final long waitNanos = nowNanos - p.nanos;
+      entry.queueWait.record(waitNanos);
+      return waitNanos;
+   }
+
+   /**
+    * Queue wait of a native input event, which was never seen posted, from its OS
+    * timestamp.
+    *
+    * @return the wait, or -1 if it isn't an input event or its timestamp can't be used
+    */
+   private static long inputWaitNanos(final AWTEvent event) {
+      if (!(event instanceof InputEvent)) {
+         return -1;
+      }
+      final long when = ((InputEvent) event).getWhen();
+      if (when <= 0) {
+         return -1;
+      }
+      final long waitMillis = System.currentTimeMillis() - when;
+      if ((waitMillis < 0) || (waitMillis > MAX_INPUT_WAIT_MILLIS)) {
+         return -1;
+      }
+      return waitMillis * Util.NANO_PER_MILLI;
+   }
+
+   /**
+    * EDT only. Records one dispatch.
+    */
+   void record(final AWTEvent event, final long durationNanos) {
+      entryFor(event, probe).histogram.record(durationNanos);
+   }
+
+   private Entry entryFor(final AWTEvent event, final Key probe) {
+      final Object source = event.getSource();
+      probe.set(event.getClass(), event.getID(), (source == null) ? null : source.getClass());
+      Entry entry = entries.get(probe);
+      if (entry == null) {
+         entry = newEntry(event, probe);
+      }
+      return entry;
+   }
+
+   private synchronized Entry newEntry(final AWTEvent event, final Key probe) {
+      Entry entry = entries.get(probe);
+      if (entry != null) {
+         return entry;
+      }
+      if (entries.size() >= MAX_KEYS) {
+         entry = entries.get(OTHER);
+         if (entry == null) {
+            entry = new Entry(OTHER, "(other)");
+            entries.put(OTHER, entry);
+         }
+         return entry;
+      }
+      final Key key = new Key(probe.eventClass, probe.eventID, probe.sourceClass);
+      entry = new Entry(key, eventName(event));
+      entries.put(key, entry);
+      return entry;
+   }
+
+   private static int indexOf(final AWTEvent event) {
+      final int h = System.identityHashCode(event);
+      return (h ^ (h >>> 16)) & (POSTED_CAPACITY - 1);
+   }
+
+   /**
+    * The queue may merge these into an event already queued, and then they are never
+    * dispatched. Counting them would inflate the backlog during every drag.
+    */
+   private static boolean mayCoalesce(final AWTEvent event) {
+      if (!(event.getSource() instanceof Component)) {
+         return false;
+      }
+      final int id = event.getID();
+      return (event instanceof PaintEvent) || (id == MouseEvent.MOUSE_MOVED) || (id == MouseEvent.MOUSE_DRAGGED)
+            || ((event instanceof InvocationEvent) && (event.getClass() != InvocationEvent.class));
+   }
+
+   /** "MOUSE_PRESSED" rather than 501, where the event's paramString starts with it. */
+   private static String eventName(final AWTEvent event) {
+      try {
+         final String param = event.paramString();
+         final int comma = param.indexOf(',');
+         return (comma == -1) ? param : param.substring(0, comma);
+      }
+      catch (RuntimeException e) {
+         return String.valueOf(event.getID());
+      }
+   }
+
+   /**
+    * Percentiles of every event type seen, slowest p99 first.
+    */
+   public List<Snapshot> snapshot() {
+      final List<Snapshot> snapshots = new ArrayList<Snapshot>(entries.size());
+      for (Entry e : entries.values()) {
+         if ((e.histogram.count() > 0) || (e.backlog.get() > 0)) {
+            snapshots.add(new Snapshot(e));
+         }
+      }
+      Collections.sort(snapshots, new Comparator<Snapshot>() {
+         @Override
+         public int compare(final Snapshot a, final Snapshot b) {
+            return (a.p99 < b.p99) ? 1 : ((a.p99 == b.p99) ? 0 : -1);
+         }
+      });
+      return snapshots;
+   }
+
+   /** Forgets everything recorded so far. Event types and current backlogs stay. */
+   public void reset() {
+      for (Entry e : entries.values()) {
+         e.histogram.reset();
+         e.queueWait.reset();
+         e.backlogDepth.reset();
+      }
+   }
+
+   /**
+    * How often the table is printed, if anything was dispatched in between. Zero stops
+    * it.
+    */
+   public synchronized void setEmitInterval(final long interval, final TimeUnit unit) {
+      if (timer != null) {
+         timer.cancel();
+         timer = null;
+      }
+      final long millis = unit.toMillis(interval);
+      if (millis > 0) {
+         timer = new Timer("EDT Latency Stats", true);
+         timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+               emit();
+            }
+         }, millis, millis);
+      }
+   }
+
+   private void emit() {
+      long total = 0;
+      for (Entry e : entries.values()) {
+         total += e.histogram.count();
+      }
+      if (emittedAtCount.getAndSet(total) == total) {
+         return;
+      }
+      // Rendered by the printer thread.
+      aout.add(new AsyncPrinter.Expression() {
+         @Override
+         public Object eval() {
+            return format(snapshot());
+         }
+      });
+   }
+
+   static String format(final List<Snapshot> snapshots) {
+      final StringBuilder sb = new StringBuilder("EDT dispatch latency (ms):\n");
+      sb.append(String.format("%9s %8s %8s %8s %8s %8s | %8s %8s | %7s %7s  %s%n", "count", "p50", "p90", "p99",
+            "p99.9", "max", "wait p50", "wait p99", "backlog", "max", "event"));
+      for (Snapshot s : snapshots) {
+         sb.append(String.format("%9d %8.1f %8.1f %8.1f %8.1f %8.1f | %8.1f %8.1f | %7d %7d  %s %s from %s%n",
+               s.count, millis(s.p50), millis(s.p90), millis(s.p99), millis(s.p999), millis(s.max),
+               millis(s.queueWaitP50), millis(s.queueWaitP99), s.backlog, s.maxBacklog, s.eventClass, s.eventName,
+               s.sourceClass));
+      }
+      return sb.toString();
+   }
+
+   private static double millis(final long nanos) {
+      return nanos / (double) Util.NANO_PER_MILLI;
+   }
+
+   /**
+    * Percentiles of one event type at the time it was taken. Values are in nanoseconds,
+    * within 12.5% of the true value.
+    */
+   public static final class Snapshot {
+      private final String eventClass;
+      private final int eventID;
+      private final String eventName;
+      private final String sourceClass;
+      private final long count;
+      private final long mean;
+      private final long p50;
+      private final long p90;
+      private final long p99;
+      private final long p999;
+      private final long max;
+      private final long queueWaitP50;
+      private final long queueWaitP99;
+      private final long queueWaitMax;
+      private final int backlog;
+      private final long maxBacklog;
+
+      private Snapshot(final Entry e) {
+         this.eventClass = e.key.eventClass.getName();
+         this.eventID = e.key.eventID;
+         this.eventName = e.eventName;
+         this.sourceClass = (e.key.sourceClass == null) ? "null" : e.key.sourceClass.getName();
+         this.count = e.histogram.count();
+         this.mean = e.histogram.mean();
+         this.max = e.histogram.max();
+         final long[] p = e.histogram.percentiles(PERCENTILES);
+         this.p50 = p[0];
+         this.p90 = p[1];
+         this.p99 = p[2];
+         this.p999 = p[3];
+         final long[] w = e.queueWait.percentiles(PERCENTILES);
+         this.queueWaitP50 = w[0];
+         this.queueWaitP99 = w[2];
+         this.queueWaitMax = e.queueWait.max();
+         this.backlog = Math.max(0, e.backlog.get());
+         this.maxBacklog = e.backlogDepth.max();
+      }
+
+      public String getEventClass() {
+         return eventClass;
+      }
+
+      /** {@link AWTEvent#getID()}; -1 for the overflow entry. */
+      public int getEventID() {
+         return eventID;
+      }
+
+      public String getEventName() {
+         return eventName;
+      }
+
+      public String getSourceClass() {
+         return sourceClass;
+      }
+
+      public long getCount() {
+         return count;
+      }
+
+      public long getMeanNanos() {
+         return mean;
+      }
+
+      public long getP50Nanos() {
+         return p50;
+      }
+
+      public long getP90Nanos() {
+         return p90;
+      }
+
+      public long getP99Nanos() {
+         return p99;
+      }
+
+      public long getP999Nanos() {
+         return p999;
+      }
+
+      public long getMaxNanos() {
+         return max;
+      }
+
+      /** Time between posting and dispatch. */
+      public long getQueueWaitP50Nanos() {
+         return queueWaitP50;
+      }
+
+      public long getQueueWaitP99Nanos() {
+         return queueWaitP99;
+      }
+
+      public long getQueueWaitMaxNanos() {
+         return queueWaitMax;
+      }
+
+      /**
+       * Events of this type queued when the snapshot was taken. Events the queue may
+       * coalesce, such as paints and mouse moves, aren't counted.
+       */
+      public int getBacklog() {
+         return backlog;
+      }
+
+      /** The most events of this type ever queued at once. */
+      public long getMaxBacklog() {
+         return maxBacklog;
+      }
+
+      @Override
+      public String toString() {
+         return eventClass + " " + eventName + " from " + sourceClass + ": count(" + count + ") p50("
+               + Util.elapsedNanoFormatterSeconds(p50) + ") p99(" + Util.elapsedNanoFormatterSeconds(p99) + ") max("
+               + Util.elapsedNanoFormatterSeconds(max) + ") queueWaitP99(" + Util.elapsedNanoFormatterSeconds(queueWaitP99)
+               + ") backlog(" + backlog + ") maxBacklog(" + maxBacklog + ")";
+      }
+   }
+
+   private static final class Entry {
+      final Key key;
+      final String eventName;
+      final LatencyHistogram histogram = new LatencyHistogram();
+      final LatencyHistogram queueWait = new LatencyHistogram();
+      /** Backlog of this type as each event was posted, itself included. */
+      final LatencyHistogram backlogDepth = new LatencyHistogram();
+      final AtomicInteger backlog = new AtomicInteger();
+
+      Entry(final Key key, final String eventName) {
+         this.key = key;
+         this.eventName = eventName;
+      }
+   }
+
+   private static final class Posted {
+      final AWTEvent event;
+      final long nanos;
+      final Entry entry;
+
+      Posted(final AWTEvent event, final long nanos, final Entry entry) {
+         this.event = event;
+         this.nanos = nanos;
+         this.entry = entry;
+      }
+   }
+
+   /** Classes compare by identity, so two class loaders' copies stay apart. */
+   private static final class Key {
+      Class<?> eventClass;
+      int eventID;
+      Class<?> sourceClass;
+
+      Key(final Class<?> eventClass, final int eventID, final Class<?> sourceClass) {
+         set(eventClass, eventID, sourceClass);
+      }
+
+      void set(final Class<?> eventClass, final int eventID, final Class<?> sourceClass) {
+         this.eventClass = eventClass;
+         this.eventID = eventID;
+         this.sourceClass = sourceClass;
+      }
+
+      @Override
+      public int hashCode() {
+         return (System.identityHashCode(eventClass) * 31 + eventID) * 31 + System.identityHashCode(sourceClass);
+      }
+
+      @Override
+      public boolean equals(final Object o) {
+         if (!(o instanceof Key)) {
+            return false;
+         }
+         final Key k = (Key) o;
+         return (eventClass == k.eventClass) && (eventID == k.eventID) && (sourceClass == k.sourceClass);
+      }
+   }
+}
@@ -0,0 +1,276 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which overdue dispatches {@link EDTPerformanceMonitor} analyzes in depth.
+ * <p>
+ * Every dispatch is timed; that costs a couple of field writes. Deep analysis (stack
+ * sampling, thread info, contention checks) is what costs CPU, and under heavy input a
+ * drag or an animation can make every event overdue. So deep analysis is chosen by:
+ * <ul>
+ * <li>a sample rate per event class and per source class, 1.0 unless configured;</li>
+ * <li>a CPU budget for the watchdog and contention analysis threads, by default 1% of
+ * one core. When it runs out, no new analyses start and sampling of the current one
+ * slows down.</li>
+ * </ul>
+ * When a dispatch that wasn't analyzed turns out to be a real hang, its event and source
+ * class are boosted to full sampling for a while, so the next one is caught.
+ * <p>
+ * It also keeps the sampling metrics: how late each stack sample of an analyzed dispatch
+ * was taken (jitter), and how many contention checks were dropped because the
+ * {@link ContentionAnalysisWorker} was behind.
+ * <p>
+ * The configuration methods may be called from any thread. The rest is called only by
+ * the watchdog, except {@link #dispatchMissed}, which the EDT calls for missed hangs,
+ * and {@link #chargeOffThread}.
+ */
+public final class DispatchSamplingPolicy {
+   private final static ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+   /** How long a boost lasts after a missed hang. */
+   private final static long BOOST_NANOS = Util.NANOS_PER_SEC * 60;
+
+   /** The most CPU time that can be saved up while the watchdog is quiet. */
+   private final static long MAX_SAVED_CPU_NANOS = Util.NANO_PER_MILLI * 50;
+
+   private final static double UNCONFIGURED = 1.0;
+
+   private final Map<Class<?>, Double> eventRates = new ConcurrentHashMap<Class<?>, Double>();
+   private final Map<Class<?>, Double> sourceRates = new ConcurrentHashMap<Class<?>, Double>();
+
+   /** Event class name + '|' + source class name, to the end of its boost. */
+   private final Map<String, Long> boostedUntil = new ConcurrentHashMap<String, Long>();
+
+   private volatile double cpuBudget = 0.01;
+
+   // Watchdog only.
+   private double savedCpuNanos = MAX_SAVED_CPU_NANOS;
+   private long lastRefillNanos = System.nanoTime();
+
+   private final AtomicLong analyzed = new AtomicLong();
+   private final AtomicLong skippedByRate = new AtomicLong();
+   private final AtomicLong skippedByBudget = new AtomicLong();
+   private final AtomicLong missed = new AtomicLong();
+   private final AtomicLong droppedContentionChecks = new AtomicLong();
+
+   /** CPU used by other threads, not yet taken from {@code savedCpuNanos}. */
+   private final AtomicLong offThreadCpuNanos = new AtomicLong();
+
+   private final LatencyHistogram samplingJitter = new LatencyHistogram();
+
+   DispatchSamplingPolicy() {
+   }
+
+   /**
+    * @param fractionOfOneCore
+    *        how much CPU the watchdog may use for analysis, e.g. 0.01 for 1% of one core
+    */
+   public void setCpuBudget(final double fractionOfOneCore) {
+      if ((fractionOfOneCore <= 0) || (fractionOfOneCore > 1)) {
+         throw new IllegalArgumentException("fractionOfOneCore(" + fractionOfOneCore + ") must be in (0, 1]");
+      }
+      cpuBudget = fractionOfOneCore;
+   }
+
+   public double getCpuBudget() {
+      return cpuBudget;
+   }
+
+   /**
+    * Analyzes only {@code rate} of the overdue dispatches of exactly this event class.
+    */
+   public void setEventSampleRate(final Class<? extends AWTEvent> eventClass, final double rate) {
+      eventRates.put(eventClass, checkRate(rate));
+   }
+
+   /**
+    * Analyzes only {@code rate} of the overdue dispatches of events from this class of
+    * source, or a subclass of it.
+    */
+   public void setSourceSampleRate(final Class<?> sourceClass, final double rate) {
+      sourceRates.put(sourceClass, checkRate(rate));
+   }
+
+   private static Double checkRate(final double rate) {
+      if ((rate < 0) || (rate > 1)) {
+         throw new IllegalArgumentException("rate(" + rate + ") must be in [0, 1]");
+      }
+      return rate;
+   }
+
+   /** Overdue dispatches analyzed in depth. */
+   public long getAnalyzedCount() {
+      return analyzed.get();
+   }
+
+   public long getSkippedByRateCount() {
+      return skippedByRate.get();
+   }
+
+   public long getSkippedByBudgetCount() {
+      return skippedByBudget.get();
+   }
+
+   /** Hangs that weren't analyzed because of sampling, each of which caused a boost. */
+   public long getMissedCount() {
+      return missed.get();
+   }
+
+   /** Contention checks dropped because the previous ones were still running. */
+   public long getDroppedContentionCheckCount() {
+      return droppedContentionChecks.get();
+   }
+
+   /** Stack samples of analyzed dispatches that were due after an earlier sample. */
+   public long getSampleCount() {
+      return samplingJitter.count();
+   }
+
+   /**
+    * How far from its due time a stack sample was taken, early or late.
+    *
+    * @param percentile
+    *        0 to 100
+    */
+   public long getSamplingJitterNanos(final double percentile) {
+      return samplingJitter.percentile(percentile);
+   }
+
+   public long getMaxSamplingJitterNanos() {
+      return samplingJitter.max();
+   }
+
+   public void resetSamplingJitter() {
+      samplingJitter.reset();
+   }
+
+   // ////////////////////////////////////////////////////////////////
+
+   /**
+    * Watchdog only. Whether to attach an analyzer to this overdue dispatch.
+    */
+   boolean shouldAnalyze(final long dispatchID, final AWTEvent event, final long nowNanos) {
+      refill(nowNanos);
+      if (!isBoosted(event, nowNanos)) {
+         final double rate = rateFor(event);
+         if ((rate < 1) && !isSampled(dispatchID, rate)) {
+            skippedByRate.incrementAndGet();
+            return false;
+         }
+      }
+      if (savedCpuNanos <= 0) {
+         skippedByBudget.incrementAndGet();
+         return false;
+      }
+      analyzed.incrementAndGet();
+      return true;
+   }
+
+   /**
+    * Watchdog only. Charges analysis work and returns how long to wait before the next
+    * time slice: {@code intervalNanos}, or longer if that would exceed the budget.
+    */
+   long charge(final long workCpuNanos, final long intervalNanos) {
+      savedCpuNanos -= workCpuNanos + offThreadCpuNanos.getAndSet(0);
+      return Math.max(intervalNanos, (long) (workCpuNanos / cpuBudget));
+   }
+
+   /**
+    * Any thread. Charges analysis work done off the watchdog thread to the budget.
+    */
+   void chargeOffThread(final long workCpuNanos) {
+      offThreadCpuNanos.addAndGet(workCpuNanos);
+   }
+
+   /**
+    * Watchdog only. A stack sample was taken {@code lateNanos} after it was due, or
+    * before if negative.
+    */
+   void sampled(final long lateNanos) {
+      samplingJitter.record(Math.abs(lateNanos));
+   }
+
+   void contentionCheckDropped() {
+      droppedContentionChecks.incrementAndGet();
+   }
+
+   /**
+    * EDT. A dispatch ran long enough to be reported but wasn't analyzed.
+    */
+   void dispatchMissed(final AWTEvent event, final long nowNanos) {
+      missed.incrementAndGet();
+      boostedUntil.put(keyFor(event), nowNanos + BOOST_NANOS);
+   }
+
+   /**
+    * CPU time of the calling thread, or its wall time where CPU time isn't available.
+    */
+   static long threadNanos() {
+      if (THREAD_BEAN.isCurrentThreadCpuTimeSupported()) {
+         final long cpu = THREAD_BEAN.getCurrentThreadCpuTime();
+         if (cpu != -1) {
+            return cpu;
+         }
+      }
+      return System.nanoTime();
+   }
+
+   private void refill(final long nowNanos) {
+      savedCpuNanos = Math.min(MAX_SAVED_CPU_NANOS, savedCpuNanos + (nowNanos - lastRefillNanos) * cpuBudget
+            - offThreadCpuNanos.getAndSet(0));
+      lastRefillNanos = nowNanos;
+   }
+
+   private boolean isBoosted(final AWTEvent event, final long nowNanos) {
+      if (boostedUntil.isEmpty()) {
+         return false;
+      }
+      final String key = keyFor(event);
+      final Long until = boostedUntil.get(key);
+      if (until == null) {
+         return false;
+      }
+      if (nowNanos - until > 0) {
+         boostedUntil.remove(key);
+         return false;
+      }
+      return true;
+   }
+
+   private double rateFor(final AWTEvent event) {
+      double rate = UNCONFIGURED;
+      if (!eventRates.isEmpty()) {
+         final Double r = eventRates.get(event.getClass());
+         if (r != null) {
+            rate = r;
+         }
+      }
+      if (!sourceRates.isEmpty() && (event.getSource() != null)) {
+         for (Class<?> c = event.getSource().getClass(); c != null; c = c.getSuperclass()) {
+            final Double r = sourceRates.get(c);
+            if (r != null) {
+               rate = Math.min(rate, r);
+               break;
+            }
+         }
+      }
+      return rate;
+   }
+
+   /** Spreads consecutive IDs evenly, so a rate of 0.1 takes every tenth or so. */
+   private static boolean isSampled(final long dispatchID, final double rate) {
+      final long h = (dispatchID * 0x9E3779B97F4A7C15L) >>> 11;
+      return h < rate * (1L << 53);
+   }
+
+   private static String keyFor(final AWTEvent event) {
+      final Object source = event.getSource();
+      return event.getClass().getName() + '|' + ((source == null) ? "null" : source.getClass().getName());
+   }
+}
@@ -0,0 +1,143 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * One level of the EDT's dispatch stack. Slots are allocated once and reused, so a
+ * dispatch that finishes quickly costs a few field writes and nothing else. The
+ * expensive {@link DispatchAnalyzer}, with its stack traces and thread info, is
+ * attached only once the watchdog sees the dispatch running long.
+ * <p>
+ * No locks. The EDT is the only writer; {@code dispatchID} works as a sequence lock.
+ * It is zero while the slot is free or being rewritten and is set last, so the watchdog
+ * reads it, then the other fields, then checks it again to know it saw one dispatch
+ * and not a mixture of two. The analyzer is attached by compare-and-set.
+ */
+final class DispatchSlot {
+   private static final AtomicReferenceFieldUpdater<DispatchSlot, DispatchAnalyzer> ANALYZER = AtomicReferenceFieldUpdater
+         .newUpdater(DispatchSlot.class, DispatchAnalyzer.class, "analyzer");
+
+   private volatile long dispatchID = 0;
+   private volatile long startNanos;
+   private volatile long queueWaitNanos;
+   private volatile AWTEvent event;
+   private volatile Thread eventDispatchThread;
+   private volatile DispatchAnalyzer analyzer = null;
+
+   /** The dispatch the sampling policy decided not to analyze. Watchdog writes it. */
+   private volatile long declinedID = 0;
+
+   /** EDT only. Called as the event is dispatched. */
+   void begin(final long dispatchID, final AWTEvent event, final long startNanos, final long queueWaitNanos) {
+      this.analyzer = null;
+      this.startNanos = startNanos;
+      this.queueWaitNanos = queueWaitNanos;
+      this.event = event;
+      this.eventDispatchThread = Thread.currentThread();
+      // Publishes the fields above.
+      this.dispatchID = dispatchID;
+   }
+
+   /**
+    * EDT only. Called once the event has been dispatched. Drops the event reference so
+    * the slot doesn't keep it alive.
+    *
+    * @return the analyzer the watchdog attached, if any. It may belong to an earlier
+    *         dispatch in this slot if the watchdog lost a race; check its ID.
+    */
+   DispatchAnalyzer end() {
+      dispatchID = 0;
+      event = null;
+      return ANALYZER.getAndSet(this, null);
+   }
+
+   DispatchAnalyzer analyzer() {
+      return analyzer;
+   }
+
+   /** The thread that began the dispatch in this slot. */
+   Thread eventDispatchThread() {
+      return eventDispatchThread;
+   }
+
+   /** EDT only, while the dispatch is in this slot. */
+   long startNanos() {
+      return startNanos;
+   }
+
+   boolean isDeclined(final long dispatchID) {
+      return declinedID == dispatchID;
+   }
+
+   /**
+    * The time an outer dispatch resumed after a nested one finished counts as its start,
+    * as if it had just been redispatched.
+    */
+   static long effectiveStart(final long startNanos, final long resumedNanos) {
+      return (resumedNanos - startNanos > 0) ? resumedNanos : startNanos;
+   }
+
+   /**
+    * @return how long until the dispatch has run {@code thresholdNanos}, or a negative
+    *         number if there's no dispatch in this slot or it was declined
+    */
+   long nanosUntilOverdue(final long nowNanos, final long thresholdNanos, final long resumedNanos) {
+      final long id = dispatchID;
+      final long start = startNanos;
+      if ((id == 0) || (dispatchID != id) || (declinedID == id)) {
+         return -1;
+      }
+      return Math.max(0, effectiveStart(start, resumedNanos) + thresholdNanos - nowNanos);
+   }
+
+   /**
+    * Watchdog only. Attaches an analyzer if the dispatch has been running at least
+    * {@code thresholdNanos} and {@code policy} chooses it. A dispatch the policy
+    * declines is not offered to it again.
+    *
+    * @return the new analyzer, or null if there is no dispatch, it isn't overdue, it was
+    *         declined, or it ended while the analyzer was being created
+    */
+   DispatchAnalyzer attachIfOverdue(final long nowNanos, final long thresholdNanos, final long resumedNanos,
+         final DispatchSamplingPolicy policy, final boolean monitorThreadContention, final AsyncPrinter aout,
+         final LoggingClassLoader classLoader, final ContentionAnalysisWorker contentionWorker) {
+      final long id = dispatchID;
+      if ((id == 0) || (declinedID == id)) {
+         return null;
+      }
+      final long start = effectiveStart(startNanos, resumedNanos);
+      final AWTEvent e = event;
+      final Thread t = eventDispatchThread;
+      final long queueWait = queueWaitNanos;
+      if ((dispatchID != id) || (nowNanos - start < thresholdNanos)) {
+         return null;
+      }
+      if (!policy.shouldAnalyze(id, e, nowNanos)) {
+         declinedID = id;
+         return null;
+      }
+
+      final DispatchAnalyzer a = new DispatchAnalyzer(id, e, t, start, monitorThreadContention, aout,
+            contentionWorker);
+      a.setQueueWaitNanos(queueWait);
+      if (!ANALYZER.compareAndSet(this, null, a)) {
+         return null;
+      }
+      if (dispatchID != id) {
+         // The dispatch ended meanwhile. Take it back unless the EDT already has.
+         ANALYZER.compareAndSet(this, a, null);
+         return null;
+      }
+
+      if (classLoader != null) {
+         classLoader.addObserver(a);
+         if (analyzer != a) {
+            // end() got it first and may have removed the observer before it was added.
+            classLoader.deleteObserver(a);
+            return null;
+         }
+      }
+      return a;
+   }
+}
@@ -0,0 +1,176 @@
+package com.linfords.swing.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Collapses repeated output. While an EDT hang lasts, the same thread dumps and
+ * contention blocks are printed again every second or so; this lets the first copy
+ * through and replaces the rest with a single "repeated N times" line.
+ * <p>
+ * Entries are identified by a 64-bit FNV-1a hash of their rendered text, or of their
+ * inputs when the expression can {@linkplain AsyncPrinter.Expression#identity() say what
+ * they are}; those are checked with {@link #isRepeat} before they are rendered at all. A
+ * repeat is suppressed if it comes within {@code windowNanos} of the first copy; after
+ * that the next copy is printed in full again, so a long hang still shows up
+ * periodically.
+ * <p>
+ * Printer thread only.
+ */
+final class DuplicateSuppressor {
+   /**
+    * Shorter entries are never suppressed. They are cheap, and suppressing a divider or
+    * a blank line would break up the structure of the report.
+    */
+   static final int MIN_CHARS = 256;
+
+   /** FNV-1a offset basis; {@link #mix} folds values into it. */
+   static final long SEED = 0xcbf29ce484222325L;
+
+   private static final int PREVIEW_CHARS = 120;
+
+   private final long windowNanos;
+   private final int maxEntries;
+
+   /** In order of first appearance, which is also the order they expire in. */
+   private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+
+   private static final class Entry {
+      final int length;
+      final long firstNanos;
+      final String preview;
+      long lastNanos;
+      int repeats = 0;
+
+      Entry(final int length, final long firstNanos, final String preview) {
+         this.length = length;
+         this.firstNanos = firstNanos;
+         this.lastNanos = firstNanos;
+         this.preview = preview;
+      }
+   }
+
+   DuplicateSuppressor(final long windowNanos, final int maxEntries) {
+      this.windowNanos = windowNanos;
+      this.maxEntries = maxEntries;
+   }
+
+   static long mix(final long hash, final long value) {
+      return (hash ^ value) * 0x100000001b3L;
+   }
+
+   /**
+    * Whether output identified by {@code identity} was printed less than a window ago.
+    * If so it is counted as a repeat and need not be rendered.
+    */
+   boolean isRepeat(final long identity, final long nowNanos) {
+      final Entry seen = entries.get(identity);
+      if ((seen != null) && (nowNanos - seen.firstNanos < windowNanos)) {
+         seen.repeats++;
+         seen.lastNanos = nowNanos;
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Checks the entry that starts at {@code mark} and runs to the end of {@code batch}.
+    * A repeat is removed from the batch. Otherwise it stays, possibly preceded by the
+    * summary of an earlier run of repeats.
+    *
+    * @param identity
+    *        the expression's identity, or 0 to hash the rendered text
+    * @return true if the entry was removed
+    */
+   boolean filter(final StringBuilder batch, final int mark, final long identity, final long nowNanos,
+         final String lineSeparator) {
+      final int length = batch.length() - mark;
+      if (length < MIN_CHARS) {
+         return false;
+      }
+
+      long hash = identity;
+      if (hash == 0) {
+         hash = SEED;
+         for (int i = mark; i < batch.length(); i++) {
+            hash = mix(hash, batch.charAt(i));
+         }
+      }
+
+      final Long key = hash;
+      final Entry seen = entries.get(key);
+      if ((seen != null) && (seen.length == length) && (nowNanos - seen.firstNanos < windowNanos)) {
+         seen.repeats++;
+         seen.lastNanos = nowNanos;
+         batch.setLength(mark);
+         return true;
+      }
+
+      final StringBuilder summaries = new StringBuilder();
+      if (seen != null) {
+         entries.remove(key);
+         appendSummary(summaries, seen, lineSeparator);
+      }
+      entries.put(key, new Entry(length, nowNanos, preview(batch, mark)));
+      if (entries.size() > maxEntries) {
+         Iterator<Entry> eldest = entries.values().iterator();
+         appendSummary(summaries, eldest.next(), lineSeparator);
+         eldest.remove();
+      }
+      if (summaries.length() > 0) {
+         batch.insert(mark, summaries);
+      }
+      return false;
+   }
+
+   /**
+    * Appends a summary for every entry whose window has passed, and forgets them.
+    */
+   void appendExpired(final StringBuilder batch, final long nowNanos, final String lineSeparator) {
+      for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+         final Entry e = it.next();
+         if (nowNanos - e.firstNanos < windowNanos) {
+            break;
+         }
+         appendSummary(batch, e, lineSeparator);
+         it.remove();
+      }
+   }
+
+   /**
+    * How long until {@link #appendExpired} has a summary to append, so an idle printer
+    * knows when to wake up for it.
+    *
+    * @return the wait, zero if one is due, or -1 if no entry has repeats to summarize
+    */
+   long nanosUntilSummary(final long nowNanos) {
+      // Entries expire in order, so the first with repeats is the first summary.
+      for (Entry e : entries.values()) {
+         if (e.repeats > 0) {
+            return Math.max(0, e.firstNanos + windowNanos - nowNanos);
+         }
+      }
+      return -1;
+   }
+
+   private static void appendSummary(final StringBuilder sb, final Entry e, final String lineSeparator) {
+      if (e.repeats == 0) {
+         return;
+      }
+      sb.append("[previous output repeated ").append(e.repeats).append(" times in ")
+            .append(Util.elapsedNanoFormatterSeconds(e.lastNanos - e.firstNanos)).append("] ").append(e.preview)
+            .append(lineSeparator);
+   }
+
+   private static String preview(final StringBuilder batch, final int mark) {
+      int end = Math.min(batch.length(), mark + PREVIEW_CHARS);
+      for (int i = mark; i < end; i++) {
+         final char c = batch.charAt(i);
+         if ((c == '\n') || (c == '\r')) {
+            end = i;
+            break;
+         }
+      }
+      return batch.substring(mark, end);
+   }
+}
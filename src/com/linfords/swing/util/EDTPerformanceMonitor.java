@@ -5,11 +5,12 @@ import java.awt.EventQueue;
 import java.awt.Toolkit;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -43,13 +44,13 @@ public final class EDTPerformanceMonitor extends EventQueue {
    private static final Logger log = Logger.getLogger(EDTPerformanceMonitor.class.getName());
 
    /** Used to assign each dispatch its unique ID. */
-   private static long globalDispatchNumber = 0;
+   private static final AtomicLong globalDispatchNumber = new AtomicLong();
 
    private static LoggingClassLoader loggingClassLoader = null;
    private static final int INVALID_DISPATCH_ID = -1;
 
-   private static synchronized long nextDispatchID() {
-      return ++globalDispatchNumber;
+   private static long nextDispatchID() {
+      return globalDispatchNumber.incrementAndGet();
    }
 
    private final static AsyncPrinter aout = AsyncPrinter.defaultInstance();
@@ -86,13 +87,21 @@ public final class EDTPerformanceMonitor extends EventQueue {
       THREAD_CONTENTION_MONITORING = temp;
    }
 
+   static {
+      // A long hang produces the same thread dumps every second or so. Print each
+      // one once a minute, and keep lesser risk findings to a rate a person can
+      // read; deadlock risks are exempt.
+      aout.setDuplicateWindow(60, TimeUnit.SECONDS);
+      aout.setRateLimit(DispatchAnalyzer.CATEGORY_CONTENTION, 5, 50);
+   }
+
    private final static EDTPerformanceMonitor INSTANCE = new EDTPerformanceMonitor();
 
    /**
-    * AnalysisTimerTask interval. The wait time in between a time slice analysis of the
-    * current dispatch
+    * Watchdog sampling interval. The wait time in between a time slice analysis of the
+    * current dispatch, once it has become overdue.
     */
-   private final static long ANALYSIS_INTERVAL_MILLI = 5;
+   private final static long ANALYSIS_INTERVAL_NANOS = Util.NANO_PER_MILLI * 5;
 
    /**
     * The first several dispatches seem to be system setup and installing this very
@@ -101,47 +110,142 @@ public final class EDTPerformanceMonitor extends EventQueue {
    private final static long PROFILING_DISABLED_UNTIL_AFTER_DISPATCH_COUNT = 2;
 
    /**
-    * The currently outstanding event dispatches. The implementation of modal dialogs is a
-    * common cause for multiple outstanding dispatches.
+    * A dispatch that runs this long gets a {@link DispatchAnalyzer}. Shorter ones, which
+    * is nearly all of them, cost only a few writes to their {@link DispatchSlot}.
+    */
+   private final static long ANALYSIS_THRESHOLD_NANOS = Util.NANO_PER_MILLI * 25;
+
+   /**
+    * The currently outstanding event dispatches, outermost first; slots from
+    * {@code depth} up are free. The implementation of modal dialogs is a common cause
+    * for multiple outstanding dispatches. Only the EDT changes these, without locking;
+    * the volatile writes publish them to the watchdog.
+    * <p>
+    * This relies on one thread dispatching at a time. An {@code EventQueue} has one
+    * dispatch thread, and one that replaces it after it shuts down starts with nothing
+    * outstanding. A dispatch from any other thread while one is outstanding is
+    * dispatched but not tracked; see {@link #preDispatchEvent}.
     */
-   private final LinkedList<DispatchAnalyzer> dispatches = new LinkedList<DispatchAnalyzer>();
+   private volatile DispatchSlot[] slots = newSlots(new DispatchSlot[0], 8);
+   private volatile int depth = 0;
+
+   /**
+    * When the last nested dispatch finished. The dispatch it interrupted, now on top
+    * again, is timed from here rather than from its own start, so a modal dialog isn't
+    * counted against the event that opened it. One write covers every outer dispatch,
+    * since only the top one is ever timed.
+    */
+   private volatile long resumedNanos = System.nanoTime();
+
+   private static DispatchSlot[] newSlots(final DispatchSlot[] current, final int length) {
+      DispatchSlot[] grown = Arrays.copyOf(current, length);
+      for (int i = current.length; i < length; i++) {
+         grown[i] = new DispatchSlot();
+      }
+      return grown;
+   }
+
+   private final DispatchSamplingPolicy samplingPolicy = new DispatchSamplingPolicy();
+
+   private final DispatchLatencyStats latencyStats = new DispatchLatencyStats();
+
+   private final InvocationAttribution invocationAttribution = new InvocationAttribution();
+
+   private final ContentionAnalysisWorker contentionWorker = new ContentionAnalysisWorker(samplingPolicy);
+
+   private final Watchdog watchdog = new Watchdog();
 
    private EDTPerformanceMonitor() {
-      initTimer();
+      contentionWorker.start();
+      watchdog.start();
    }
 
    /**
-    * Sets up a timer to check for hangs frequently.
+    * Watches the most recent dispatch for hangs. Instead of polling, it parks until the
+    * dispatch it is looking at becomes overdue, samples every
+    * {@code ANALYSIS_INTERVAL_NANOS} only while one is, and parks indefinitely while the
+    * EDT is idle. The EDT wakes it when a dispatch begins after an idle period.
+    * <p>
+    * Risk checks go to the {@link ContentionAnalysisWorker}, so nothing slow runs here
+    * between samples. How far each sample strays from its due time is recorded as the
+    * policy's sampling jitter.
     */
-   private void initTimer() {
-      final long initialDelayMs = 100; // Wait before beginning monitor
-      final boolean isDaemon = true;
-      Timer timer = new Timer("EDT Analyzer", isDaemon);
-      timer.schedule(new AnalysisTimerTask(), initialDelayMs, ANALYSIS_INTERVAL_MILLI);
-   }
+   private class Watchdog extends Thread {
+      /** Set while parked with no deadline; the EDT must unpark us. */
+      volatile boolean idle = false;
+
+      /** When the next sample of the analyzed dispatch is due, or 0 if none is. */
+      private long nextSampleNanos = 0;
+
+      Watchdog() {
+         super("EDT Analyzer");
+         setDaemon(true);
+      }
 
-   private class AnalysisTimerTask extends TimerTask {
       @Override
       public void run() {
-         DispatchAnalyzer dispatchAnalyzer;
-         synchronized (dispatches) {
-            if (dispatches.isEmpty()) {
-               // Nothing to do. We don't destroy the timer when there's nothing happening
-               // because it would mean a lot more work on every single AWT event that
-               // gets dispatched.
-               return;
+         for (;;) {
+            try {
+               watch();
+            }
+            catch (Exception e) {
+               log.log(Level.WARNING, "Unhandled error during time-slice analysis", e);
+               nextSampleNanos = 0;
+               LockSupport.parkNanos(this, ANALYSIS_INTERVAL_NANOS);
+            }
+         }
+      }
+
+      private void watch() {
+         final int d = depth;
+         if (d == 0) {
+            nextSampleNanos = 0;
+            idle = true;
+            // Re-check after advertising, or a dispatch that began in between would not
+            // wake us.
+            if (depth == 0) {
+               LockSupport.park(this);
             }
-            dispatchAnalyzer = dispatches.getLast();
+            idle = false;
+            return;
          }
 
          // Only the most recent dispatch can be hung; nested dispatches by their nature
          // cause the outer dispatch pump to be suspended.
-         try {
-            dispatchAnalyzer.anaylzeEdtTimeSlice();
+         final DispatchSlot slot = slots[d - 1];
+         final long resumed = resumedNanos;
+         final long workStart = DispatchSamplingPolicy.threadNanos();
+         final long sampleNanos = System.nanoTime();
+         DispatchAnalyzer dispatchAnalyzer = slot.analyzer();
+         if ((dispatchAnalyzer != null) && (nextSampleNanos != 0)) {
+            samplingPolicy.sampled(sampleNanos - nextSampleNanos);
          }
-         catch (Exception e) {
-            log.log(Level.WARNING, "Unhandled error during time-slice analysis", e);
+         if (dispatchAnalyzer == null) {
+            nextSampleNanos = 0;
+            final long now = System.nanoTime();
+            dispatchAnalyzer = slot.attachIfOverdue(now, ANALYSIS_THRESHOLD_NANOS, resumed, samplingPolicy,
+                     THREAD_CONTENTION_MONITORING, aout, loggingClassLoader, contentionWorker);
+            if (dispatchAnalyzer == null) {
+               final long wait = slot.nanosUntilOverdue(now, ANALYSIS_THRESHOLD_NANOS, resumed);
+               if (wait > 0) {
+                  // Most dispatches are over long before this.
+                  LockSupport.parkNanos(this, wait);
+               }
+               else if (wait < 0) {
+                  // Declined. Look again once the next dispatch could be overdue.
+                  LockSupport.parkNanos(this, ANALYSIS_THRESHOLD_NANOS);
+               }
+               return;
+            }
          }
+
+         dispatchAnalyzer.credit(resumed);
+         dispatchAnalyzer.anaylzeEdtTimeSlice();
+         final long work = DispatchSamplingPolicy.threadNanos() - workStart;
+         // Due a fixed interval after this sample started, not after it finished, so the
+         // cadence doesn't drift with the cost of each sample.
+         nextSampleNanos = sampleNanos + samplingPolicy.charge(work, ANALYSIS_INTERVAL_NANOS);
+         LockSupport.parkNanos(this, nextSampleNanos - System.nanoTime());
       }
    }
 
@@ -156,6 +260,48 @@ public final class EDTPerformanceMonitor extends EventQueue {
    public static void initMonitoring(final LoggingClassLoader loggingClassLoader) {
       EDTPerformanceMonitor.loggingClassLoader = loggingClassLoader;
       Toolkit.getDefaultToolkit().getSystemEventQueue().push(INSTANCE);
+      INSTANCE.latencyStats.setEmitInterval(60, TimeUnit.SECONDS);
+      INSTANCE.invocationAttribution.setEmitInterval(60, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Latency distribution of every dispatch, by event type.
+    */
+   public static DispatchLatencyStats getLatencyStats() {
+      return INSTANCE.latencyStats;
+   }
+
+   /**
+    * EDT time of {@code invokeLater} and {@code invokeAndWait} work, by submitter.
+    */
+   public static InvocationAttribution getInvocationAttribution() {
+      return INSTANCE.invocationAttribution;
+   }
+
+   /**
+    * Chooses which overdue dispatches are analyzed in depth, and how much CPU that may
+    * take.
+    */
+   public static DispatchSamplingPolicy getSamplingPolicy() {
+      return INSTANCE.samplingPolicy;
+   }
+
+   /**
+    * Timestamps the event, so its dispatch can tell how long it waited in the queue.
+    * Native input events bypass this; see {@link DispatchLatencyStats}.
+    */
+   @Override
+   public void postEvent(final AWTEvent event) {
+      if (event != null) {
+         try {
+            latencyStats.posted(event, System.nanoTime());
+            invocationAttribution.posted(event);
+         }
+         catch (Exception e) {
+            log.log(Level.WARNING, "Problem timestamping posted event " + event, e);
+         }
+      }
+      super.postEvent(event);
    }
 
    /**
@@ -165,10 +311,13 @@ public final class EDTPerformanceMonitor extends EventQueue {
    @Override
    protected void dispatchEvent(AWTEvent event) {
 
-      DispatchAnalyzer dispatchAnalyzer = null;
+      DispatchSlot slot = null;
 
       long currentDispatchID = INVALID_DISPATCH_ID;
-      boolean analysisQueued = false;
+      long queueWaitNanos = -1;
+      long dispatchStartNanos = System.nanoTime();
+      Object jfrEvent = null;
+      Object recorder = null;
 
       try {
          // Do not allow an Exception in monitoring to disrupt the actual program. The
@@ -176,73 +325,111 @@ public final class EDTPerformanceMonitor extends EventQueue {
          // for robustness and is truly here for exceptional cases that are not known.
          try {
             currentDispatchID = nextDispatchID();
+            final long now = dispatchStartNanos;
+            queueWaitNanos = latencyStats.dispatched(event, now);
+            jfrEvent = JfrEvents.dispatchStarted();
+            recorder = EventRecorder.dispatching();
 
             // The first several dispatches seem to be system setup and
             // installing this very monitoring tool.
             if (currentDispatchID > PROFILING_DISABLED_UNTIL_AFTER_DISPATCH_COUNT) {
-               dispatchAnalyzer = new DispatchAnalyzer(currentDispatchID, event,
-                        THREAD_CONTENTION_MONITORING, aout);
-               preDispatchEvent(dispatchAnalyzer);
-               loggingClassLoader.addObserver(dispatchAnalyzer);
-               analysisQueued = true;
+               slot = preDispatchEvent(currentDispatchID, event, now, queueWaitNanos);
             }
          }
          catch (Exception e) {
             log.log(Level.WARNING, "Problem during prep of Dispatch #" + currentDispatchID
-                     + " analysisQueued(" + analysisQueued + ")", e);
+                     + " analysisQueued(" + (slot != null) + ")", e);
          }
 
          super.dispatchEvent(event);
       }
       finally {
-         if (analysisQueued) {
-            postDispatchEvent();
-            loggingClassLoader.deleteObserver(dispatchAnalyzer);
+         // As in the prep, a failure to monitor must neither escape into the program
+         // nor keep the other monitors from seeing the dispatch end.
+         if (slot != null) {
+            try {
+               postDispatchEvent(currentDispatchID, event, slot);
+            }
+            catch (Exception e) {
+               log.log(Level.WARNING, "Problem during wrap up of Dispatch #" + currentDispatchID, e);
+            }
+         }
+         try {
+            JfrEvents.dispatchEnded(jfrEvent, currentDispatchID, event, queueWaitNanos);
+            if (recorder != null) {
+               EventRecorder.dispatched(recorder, event, dispatchStartNanos, System.nanoTime()
+                        - dispatchStartNanos);
+            }
+         }
+         catch (Exception e) {
+            log.log(Level.WARNING, "Problem recording the end of Dispatch #" + currentDispatchID, e);
          }
       }
    }
 
    /**
-    * Starts tracking a dispatch.
-    * 
-    * @param event
+    * Starts tracking a dispatch. Allocates nothing unless dispatches nest deeper than
+    * they ever have before, and takes no locks.
+    *
+    * @return the slot, or null if another thread has a dispatch outstanding
     */
-   private synchronized void preDispatchEvent(DispatchAnalyzer dispatchAnalyzer) {
-      synchronized (dispatches) {
-         dispatches.addLast(dispatchAnalyzer);
+   private DispatchSlot preDispatchEvent(final long dispatchID, final AWTEvent event, final long now,
+         final long queueWaitNanos) {
+      DispatchSlot[] s = slots;
+      final int d = depth;
+      if ((d > 0) && (s[d - 1].eventDispatchThread() != Thread.currentThread())) {
+         // Pushing it would corrupt the other thread's stack.
+         return null;
+      }
+      if (d == s.length) {
+         s = newSlots(s, s.length * 2);
+         slots = s;
+      }
+      final DispatchSlot slot = s[d];
+      slot.begin(dispatchID, event, now, queueWaitNanos);
+      depth = d + 1;
+      if (watchdog.idle) {
+         LockSupport.unpark(watchdog);
       }
+      return slot;
    }
 
    /**
     * Stops tracking a dispatch.
     */
-   private synchronized void postDispatchEvent() {
-      DispatchAnalyzer justFinishedDispatch;
-      synchronized (dispatches) {
-         // We've finished the most nested dispatch, and don't need it any
-         // longer.
-         if (dispatches.peek() == null) {
-            log.log(Level.WARNING, "Unexpected state", new IllegalStateException(
-                     "postDispatchEvent encountered an empty 'dispatches' queue"));
-            return;
-         }
-         justFinishedDispatch = dispatches.removeLast();
-      }
+   private void postDispatchEvent(final long dispatchID, final AWTEvent event, final DispatchSlot slot) {
+      // We've finished the most nested dispatch, and don't need it any longer.
+      final long now = System.nanoTime();
+      final long durationNanos = now - DispatchSlot.effectiveStart(slot.startNanos(), resumedNanos);
+      final DispatchAnalyzer justFinishedDispatch = slot.end();
+      depth = depth - 1;
+      latencyStats.record(event, durationNanos);
+      invocationAttribution.dispatched(event, durationNanos);
 
-      justFinishedDispatch.dispose();
+      if ((justFinishedDispatch == null) && (durationNanos > DispatchAnalyzer.UNREASONABLE_DISPATCH_DURATION_NANO)
+               && slot.isDeclined(dispatchID)) {
+         samplingPolicy.dispatchMissed(event, now);
+      }
 
-      // The other dispatches, which have been waiting, need to be credited
-      // extra time. We do this rather
-      // simplistically by pretending they've just been redispatched.
-      Thread currentEventDispatchThread = Thread.currentThread();
-      synchronized (dispatches) {
-         long now = System.nanoTime();
-         for (DispatchAnalyzer dispatchInfo : dispatches) {
-            if (dispatchInfo.eventDispatchThread == currentEventDispatchThread) {
-               dispatchInfo.resetDispatchTimeStamp(now);
+      if (justFinishedDispatch != null) {
+         try {
+            // One attached to an earlier dispatch in this slot was never started.
+            if (justFinishedDispatch.dispatchID == dispatchID) {
+               justFinishedDispatch.credit(resumedNanos);
+               justFinishedDispatch.dispose();
+            }
+         }
+         finally {
+            if (loggingClassLoader != null) {
+               loggingClassLoader.deleteObserver(justFinishedDispatch);
             }
          }
       }
+
+      // The other dispatches, which have been waiting, need to be credited
+      // extra time. We do this rather simplistically by pretending they've just
+      // been redispatched.
+      resumedNanos = (justFinishedDispatch == null) ? now : System.nanoTime();
    }
 
 }
@@ -0,0 +1,458 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compact binary journal of what the monitors observe.
+ * <p>
+ * Rendering stack traces as text is the most expensive thing the monitors do. With a
+ * journal open, {@link DispatchAnalyzer}, {@link Profiler} and {@link DeadlockDetector}
+ * write typed records here instead: frames become int IDs from the
+ * {@link FrameDictionary}, and each frame and class or method name is written only the
+ * first time it is used. {@link EventJournalDecoder} turns the file back into the
+ * familiar text report, outside of the monitored process.
+ * <p>
+ * All record methods are no-ops when no journal is open, so callers need not check.
+ * <p>
+ * Record methods only encode into a memory buffer; they never touch the file, so the
+ * EDT never waits for the disk. A thread of the journal's own swaps the buffer for an
+ * empty one and writes the full one out: every second, once a buffer's worth has
+ * accumulated, and straight away for records worth having on disk at once, such as
+ * the end of a hang. If the disk can't keep up, records are dropped once
+ * {@code MAX_PENDING_BYTES} are waiting, and the drop is reported.
+ * <p>
+ * Layout: {@code MAGIC VERSION} followed by records, each a type byte and its fields,
+ * written with {@link DataOutputStream}. See the {@code TYPE_*} constants.
+ */
+public final class EventJournal {
+   static final int MAGIC = 0x45444A4E; // "EDJN"
+   static final short VERSION = 1;
+
+   /** {@code int id, UTF value} */
+   static final byte TYPE_STRING = 1;
+   /** {@code int id, int className, int methodName, int fileName (-1 if none), int line} */
+   static final byte TYPE_FRAME = 2;
+   /** {@code long dispatchID, long nanos, long wallMillis, int eventClass, UTF param, int sourceClass} */
+   static final byte TYPE_DISPATCH_START = 3;
+   /** {@code long dispatchID, long nanos, long durationNanos, int hangID} */
+   static final byte TYPE_DISPATCH_END = 4;
+   /** {@code long dispatchID, long nanos, int depth, int[depth] frames (innermost first)} */
+   static final byte TYPE_STACK_SAMPLE = 5;
+   /** {@code long dispatchID, UTF risk, int threadName, UTF finding} */
+   static final byte TYPE_CONTENTION = 6;
+   /**
+    * {@code long dispatchID, long threadId, int threadName, int state, UTF lock (empty if
+    * none), int depth, int[depth] frames}
+    */
+   static final byte TYPE_THREAD_DUMP = 7;
+   /** {@code long wallMillis, UTF key, long invoked, long fastest, long slowest, long totalNanos} */
+   static final byte TYPE_PROFILER_SUMMARY = 8;
+
+   /** Dispatch ID for records not tied to a dispatch. */
+   static final long NO_DISPATCH = -1;
+
+   /** Encoded records that make it worth waking the flusher. */
+   private static final int BUFFER_BYTES = 64 * 1024;
+   /** Encoded records waiting for the disk beyond which new ones are dropped. */
+   private static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+   private static final long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+   /** How long closing waits for the flusher to write what is left. */
+   private static final long CLOSE_TIMEOUT_MILLIS = 5 * 1000;
+
+   private static volatile EventJournal current = null;
+
+   /**
+    * Starts journaling to {@code file}, replacing any journal already open.
+    */
+   public static synchronized void open(final File file) throws IOException {
+      EventJournal previous = current;
+      current = new EventJournal(file);
+      if (previous != null) {
+         previous.close();
+      }
+   }
+
+   /**
+    * Flushes and closes the journal. Monitors go back to text output.
+    */
+   public static synchronized void closeJournal() throws IOException {
+      EventJournal previous = current;
+      current = null;
+      if (previous != null) {
+         previous.close();
+      }
+   }
+
+   public static boolean isEnabled() {
+      return current != null;
+   }
+
+   static void dispatchStarted(final long dispatchID, final long nanos, final AWTEvent event) {
+      EventJournal j = current;
+      if (j != null) {
+         j.writeDispatchStart(dispatchID, nanos, event);
+      }
+   }
+
+   static void dispatchEnded(final long dispatchID, final long nanos, final long durationNanos, final int hangID) {
+      EventJournal j = current;
+      if (j != null) {
+         j.writeDispatchEnd(dispatchID, nanos, durationNanos, hangID);
+      }
+   }
+
+   static void stackSample(final long dispatchID, final long nanos, final StackTraceElement[] stack) {
+      EventJournal j = current;
+      if (j != null) {
+         j.writeStackSample(dispatchID, nanos, stack);
+      }
+   }
+
+   static void contention(final long dispatchID, final String risk, final String threadName, final String finding) {
+      EventJournal j = current;
+      if (j != null) {
+         j.writeContention(dispatchID, risk, threadName, finding);
+      }
+   }
+
+   static void threadDump(final long dispatchID, final ThreadInfo ti) {
+      EventJournal j = current;
+      if ((j != null) && (ti != null)) {
+         j.writeThreadDump(dispatchID, ti);
+      }
+   }
+
+   static void profilerSummary(final String key, final long invoked, final long fastest, final long slowest,
+         final long totalNanos) {
+      EventJournal j = current;
+      if (j != null) {
+         j.writeProfilerSummary(key, invoked, fastest, slowest, totalNanos);
+      }
+   }
+
+   // ////////////////////////////////////////////////////////////////
+
+   private final File file;
+   /** Flusher only. */
+   private final FileOutputStream fileOut;
+   private final Map<String, Integer> strings = new HashMap<String, Integer>();
+   private final BitSet writtenFrames = new BitSet();
+   /** Frame IDs of the stack being written, reused from record to record. Only grows. */
+   private int[] frameIds = new int[64];
+   private boolean failed = false;
+
+   /** Records encoded since the flusher last took them, and the stream writing them. */
+   private ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_BYTES);
+   private DataOutputStream out = new DataOutputStream(pending);
+   /** The buffer the flusher hands back once it has written it, or null while it is out. */
+   private ByteArrayOutputStream spare = new ByteArrayOutputStream(BUFFER_BYTES);
+   private long droppedRecords = 0;
+
+   private final Thread flusher;
+   private volatile boolean flushRequested = false;
+   private volatile boolean closed = false;
+
+   private EventJournal(final File file) throws IOException {
+      this.file = file;
+      this.fileOut = new FileOutputStream(file);
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      flusher = new Thread("Event Journal Flusher") {
+         @Override
+         public void run() {
+            flushUntilClosed();
+         }
+      };
+      flusher.setDaemon(true);
+      flusher.start();
+   }
+
+   /**
+    * Has the flusher write out what is left and close the file, waiting a while for it.
+    */
+   private void close() throws IOException {
+      synchronized (this) {
+         closed = true;
+      }
+      LockSupport.unpark(flusher);
+      try {
+         flusher.join(CLOSE_TIMEOUT_MILLIS);
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /** Has the flusher write out everything so far, without waiting for it. */
+   private void requestFlush() {
+      flushRequested = true;
+      LockSupport.unpark(flusher);
+   }
+
+   /**
+    * Called, holding the lock, before encoding a record.
+    *
+    * @return false if the record must be dropped: the journal is closed, or the disk is
+    *         too far behind
+    */
+   private boolean accepting() {
+      if (closed) {
+         return false;
+      }
+      final int size = pending.size();
+      if (size >= MAX_PENDING_BYTES) {
+         droppedRecords++;
+         return false;
+      }
+      if (size >= BUFFER_BYTES) {
+         requestFlush();
+      }
+      return true;
+   }
+
+   private void flushUntilClosed() {
+      for (;;) {
+         if (!flushRequested && !closed) {
+            LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+         }
+         flushRequested = false;
+         final boolean last = closed;
+         writePending();
+         if (last) {
+            try {
+               fileOut.close();
+            }
+            catch (IOException e) {
+               fail(e);
+            }
+            return;
+         }
+      }
+   }
+
+   /** Flusher. Takes the records encoded so far and writes them, without the lock. */
+   private void writePending() {
+      final ByteArrayOutputStream full;
+      final long dropped;
+      synchronized (this) {
+         if (pending.size() == 0) {
+            return;
+         }
+         full = pending;
+         pending = spare;
+         out = new DataOutputStream(pending);
+         spare = null;
+         dropped = droppedRecords;
+         droppedRecords = 0;
+      }
+      if (dropped > 0) {
+         System.err.println(EventJournal.class.getSimpleName() + " fell behind writing " + file + " and dropped "
+               + dropped + " records.");
+      }
+      try {
+         full.writeTo(fileOut);
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+      full.reset();
+      synchronized (this) {
+         spare = full;
+      }
+   }
+
+   private synchronized void writeDispatchStart(final long dispatchID, final long nanos, final AWTEvent event) {
+      if (!accepting()) {
+         return;
+      }
+      try {
+         int eventClass = stringId(event.getClass().getName());
+         int sourceClass = stringId(event.getSource() == null ? "null" : event.getSource().getClass().getName());
+         out.writeByte(TYPE_DISPATCH_START);
+         out.writeLong(dispatchID);
+         out.writeLong(nanos);
+         out.writeLong(System.currentTimeMillis());
+         out.writeInt(eventClass);
+         out.writeUTF(truncate(event.paramString()));
+         out.writeInt(sourceClass);
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   private synchronized void writeDispatchEnd(final long dispatchID, final long nanos, final long durationNanos,
+         final int hangID) {
+      if (!accepting()) {
+         return;
+      }
+      try {
+         out.writeByte(TYPE_DISPATCH_END);
+         out.writeLong(dispatchID);
+         out.writeLong(nanos);
+         out.writeLong(durationNanos);
+         out.writeInt(hangID);
+         if (hangID != -1) {
+            // A hang report is worth having on disk straight away.
+            requestFlush();
+         }
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   private synchronized void writeStackSample(final long dispatchID, final long nanos,
+         final StackTraceElement[] stack) {
+      if (!accepting()) {
+         return;
+      }
+      try {
+         int[] frames = frameIds(stack);
+         out.writeByte(TYPE_STACK_SAMPLE);
+         out.writeLong(dispatchID);
+         out.writeLong(nanos);
+         writeFrames(frames, stack.length);
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   private synchronized void writeContention(final long dispatchID, final String risk, final String threadName,
+         final String finding) {
+      if (!accepting()) {
+         return;
+      }
+      try {
+         int name = stringId(threadName);
+         out.writeByte(TYPE_CONTENTION);
+         out.writeLong(dispatchID);
+         out.writeUTF(risk);
+         out.writeInt(name);
+         out.writeUTF(truncate(finding));
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   private synchronized void writeThreadDump(final long dispatchID, final ThreadInfo ti) {
+      if (!accepting()) {
+         return;
+      }
+      try {
+         StackTraceElement[] stack = ti.getStackTrace();
+         int[] frames = frameIds(stack);
+         int name = stringId(ti.getThreadName());
+         int state = stringId(String.valueOf(ti.getThreadState()));
+         out.writeByte(TYPE_THREAD_DUMP);
+         out.writeLong(dispatchID);
+         out.writeLong(ti.getThreadId());
+         out.writeInt(name);
+         out.writeInt(state);
+         out.writeUTF(ti.getLockName() == null ? "" : truncate(ti.getLockName()));
+         writeFrames(frames, stack.length);
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   private synchronized void writeProfilerSummary(final String key, final long invoked, final long fastest,
+         final long slowest, final long totalNanos) {
+      if (!accepting()) {
+         return;
+      }
+      try {
+         out.writeByte(TYPE_PROFILER_SUMMARY);
+         out.writeLong(System.currentTimeMillis());
+         out.writeUTF(truncate(key));
+         out.writeLong(invoked);
+         out.writeLong(fastest);
+         out.writeLong(slowest);
+         out.writeLong(totalNanos);
+         requestFlush();
+      }
+      catch (IOException e) {
+         fail(e);
+      }
+   }
+
+   /**
+    * Interns the frames, writing a definition record for any this journal hasn't seen.
+    * Must be called before the record that refers to them is started. The IDs are in
+    * the first {@code stack.length} entries of the returned array, which is reused by
+    * the next call.
+    */
+   private int[] frameIds(final StackTraceElement[] stack) throws IOException {
+      if (frameIds.length < stack.length) {
+         frameIds = new int[Math.max(stack.length, frameIds.length * 2)];
+      }
+      int[] ids = frameIds;
+      FrameDictionary.GLOBAL.intern(stack, ids);
+      for (int i = 0; i < stack.length; i++) {
+         int id = ids[i];
+         if (writtenFrames.get(id)) {
+            continue;
+         }
+         StackTraceElement f = stack[i];
+         int className = stringId(f.getClassName());
+         int methodName = stringId(f.getMethodName());
+         int fileName = (f.getFileName() == null) ? -1 : stringId(f.getFileName());
+         out.writeByte(TYPE_FRAME);
+         out.writeInt(id);
+         out.writeInt(className);
+         out.writeInt(methodName);
+         out.writeInt(fileName);
+         out.writeInt(f.getLineNumber());
+         writtenFrames.set(id);
+      }
+      return ids;
+   }
+
+   private void writeFrames(final int[] frames, final int depth) throws IOException {
+      out.writeInt(depth);
+      for (int i = 0; i < depth; i++) {
+         out.writeInt(frames[i]);
+      }
+   }
+
+   private int stringId(final String s) throws IOException {
+      Integer id = strings.get(s);
+      if (id != null) {
+         return id;
+      }
+      id = strings.size();
+      strings.put(s, id);
+      out.writeByte(TYPE_STRING);
+      out.writeInt(id);
+      out.writeUTF(truncate(s));
+      return id;
+   }
+
+   /** writeUTF is limited to 64K bytes. */
+   private static String truncate(final String s) {
+      return (s.length() > 16 * 1024) ? s.substring(0, 16 * 1024) : s;
+   }
+
+   private void fail(final IOException e) {
+      if (!failed) {
+         failed = true;
+         System.err.println(EventJournal.class.getSimpleName() + " failed writing " + file
+               + ". Later errors will not be reported. Exception:");
+         e.printStackTrace();
+      }
+   }
+}
@@ -0,0 +1,314 @@
+package com.linfords.swing.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Offline decoder for {@link EventJournal} files. Prints the same kind of report the
+ * monitors print when no journal is open.
+ * <p>
+ * Usage: {@code java com.linfords.swing.util.EventJournalDecoder <journal> [minimumMillis]}
+ * <p>
+ * Dispatches shorter than {@code minimumMillis} (default 150) are left out unless a
+ * contention finding was recorded for them. The profile of a dispatch is rebuilt from
+ * its stack samples: the time between two samples is credited to the deepest frame
+ * the two have in common, which is how the live analyzer finds the "crux".
+ */
+public final class EventJournalDecoder {
+   private final static String STACK_INDENT = "   ";
+   private final static long DEFAULT_MINIMUM_MILLIS = 150;
+
+   private final DataInputStream in;
+   private final PrintStream out;
+   private final long minimumNanos;
+
+   private final Map<Integer, String> strings = new HashMap<Integer, String>();
+   private final Map<Integer, StackTraceElement> frames = new HashMap<Integer, StackTraceElement>();
+   private final Map<Long, Dispatch> dispatches = new LinkedHashMap<Long, Dispatch>();
+
+   public static void main(final String[] args) throws IOException {
+      if ((args.length < 1) || (args.length > 2)) {
+         System.err.println("Usage: java " + EventJournalDecoder.class.getName() + " <journal> [minimumMillis]");
+         System.exit(1);
+      }
+      long minimumMillis = (args.length == 2) ? Long.parseLong(args[1]) : DEFAULT_MINIMUM_MILLIS;
+
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 64 * 1024));
+      try {
+         new EventJournalDecoder(in, System.out, minimumMillis * Util.NANO_PER_MILLI).decode();
+      }
+      finally {
+         in.close();
+      }
+   }
+
+   EventJournalDecoder(final DataInputStream in, final PrintStream out, final long minimumNanos) {
+      this.in = in;
+      this.out = out;
+      this.minimumNanos = minimumNanos;
+   }
+
+   void decode() throws IOException {
+      if (in.readInt() != EventJournal.MAGIC) {
+         throw new IOException("Not an event journal");
+      }
+      short version = in.readShort();
+      if (version != EventJournal.VERSION) {
+         throw new IOException("Unsupported journal version " + version);
+      }
+
+      for (;;) {
+         int type;
+         try {
+            type = in.readByte();
+         }
+         catch (EOFException e) {
+            break;
+         }
+
+         try {
+            readRecord(type);
+         }
+         catch (EOFException e) {
+            // The process was killed mid-record. Everything before it is good.
+            out.println("(journal ends with a truncated record)");
+            break;
+         }
+      }
+
+      for (Dispatch d : dispatches.values()) {
+         print(d, false);
+      }
+      out.flush();
+   }
+
+   private void readRecord(final int type) throws IOException {
+      switch (type) {
+      case EventJournal.TYPE_STRING: {
+         int id = in.readInt();
+         strings.put(id, in.readUTF());
+         break;
+      }
+      case EventJournal.TYPE_FRAME: {
+         int id = in.readInt();
+         String className = string(in.readInt());
+         String methodName = string(in.readInt());
+         int fileId = in.readInt();
+         String fileName = (fileId == -1) ? null : string(fileId);
+         int line = in.readInt();
+         frames.put(id, new StackTraceElement(className, methodName, fileName, line));
+         break;
+      }
+      case EventJournal.TYPE_DISPATCH_START: {
+         Dispatch d = new Dispatch();
+         d.dispatchID = in.readLong();
+         d.startNanos = in.readLong();
+         in.readLong(); // wall clock, not part of the report
+         d.eventClass = string(in.readInt());
+         d.eventParam = in.readUTF();
+         d.sourceClass = string(in.readInt());
+         d.lastSampleNanos = d.startNanos;
+         dispatches.put(d.dispatchID, d);
+         break;
+      }
+      case EventJournal.TYPE_DISPATCH_END: {
+         long dispatchID = in.readLong();
+         in.readLong();
+         long durationNanos = in.readLong();
+         int hangID = in.readInt();
+         Dispatch d = dispatches.remove(dispatchID);
+         if (d != null) {
+            d.durationNanos = durationNanos;
+            d.hangID = hangID;
+            if ((durationNanos >= minimumNanos) || !d.findings.isEmpty()) {
+               print(d, true);
+            }
+         }
+         break;
+      }
+      case EventJournal.TYPE_STACK_SAMPLE: {
+         long dispatchID = in.readLong();
+         long nanos = in.readLong();
+         int[] stack = readFrames();
+         Dispatch d = dispatches.get(dispatchID);
+         if (d != null) {
+            d.addSample(nanos, stack);
+         }
+         break;
+      }
+      case EventJournal.TYPE_CONTENTION: {
+         long dispatchID = in.readLong();
+         String risk = in.readUTF();
+         String threadName = string(in.readInt());
+         String finding = in.readUTF();
+         findingsFor(dispatchID).add("[" + risk + "] Thread '" + threadName + "' " + finding);
+         break;
+      }
+      case EventJournal.TYPE_THREAD_DUMP: {
+         long dispatchID = in.readLong();
+         long threadId = in.readLong();
+         String threadName = string(in.readInt());
+         String state = string(in.readInt());
+         String lock = in.readUTF();
+         int[] stack = readFrames();
+         StringBuilder sb = new StringBuilder();
+         sb.append('"').append(threadName).append("\" Id=").append(threadId).append(' ').append(state);
+         if (lock.length() > 0) {
+            sb.append(" on ").append(lock);
+         }
+         for (int id : stack) {
+            sb.append("\n\tat ").append(frame(id));
+         }
+         findingsFor(dispatchID).add(sb.toString());
+         break;
+      }
+      case EventJournal.TYPE_PROFILER_SUMMARY: {
+         in.readLong();
+         String key = in.readUTF();
+         long invoked = in.readLong();
+         long fastest = in.readLong();
+         long slowest = in.readLong();
+         long totalNanos = in.readLong();
+         // Formatted here rather than by Profiler.Summary: touching Profiler starts its
+         // AsyncPrinter, which would keep this tool from exiting.
+         out.println(key);
+         out.println("   Invoked: " + invoked);
+         if (invoked > 0) {
+            out.println("   Fastest: " + Util.elapsedNanoFormatterSeconds(fastest));
+            out.println("   Slowest: " + Util.elapsedNanoFormatterSeconds(slowest));
+            out.println("   Average: " + Util.elapsedNanoFormatterSeconds(totalNanos / invoked));
+         }
+         out.println("     Total: " + Util.elapsedNanoFormatterSeconds(totalNanos));
+         break;
+      }
+      default:
+         throw new IOException("Unknown record type " + type);
+      }
+   }
+
+   /** Findings outside any dispatch are printed straight away. */
+   private List<String> findingsFor(final long dispatchID) {
+      Dispatch d = dispatches.get(dispatchID);
+      if (d != null) {
+         return d.findings;
+      }
+      return new ArrayList<String>() {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         public boolean add(String finding) {
+            out.println(finding);
+            return true;
+         }
+      };
+   }
+
+   private int[] readFrames() throws IOException {
+      int depth = in.readInt();
+      int[] stack = new int[depth];
+      for (int i = 0; i < depth; i++) {
+         stack[i] = in.readInt();
+      }
+      return stack;
+   }
+
+   private String string(final int id) {
+      String s = strings.get(id);
+      return (s == null) ? ("<string " + id + ">") : s;
+   }
+
+   private Object frame(final int id) {
+      StackTraceElement f = frames.get(id);
+      return (f == null) ? ("<frame " + id + ">") : f;
+   }
+
+   private void print(final Dispatch d, final boolean complete) {
+      String tag = " EDT Profiler - Dispatch #" + d.dispatchID + " " + (complete ? "complete" : "in progress")
+            + " ";
+      out.println();
+      out.println(AsyncPrinter.Divider.BEGIN_DIVIDERS + tag + AsyncPrinter.Divider.BEGIN_DIVIDERS);
+
+      long elapsed = complete ? d.durationNanos : (d.lastSampleNanos - d.startNanos);
+      out.println(Util.elapsedNanoFormatterSeconds(elapsed)
+            + (complete ? " total for UI to unfreeze." : " UI freeze elapsed when the journal ended.")
+            + " hangID(" + d.hangID + "):");
+      out.println("EDT Dispatch #" + d.dispatchID + " event(" + d.eventClass + ") eventParam(" + d.eventParam
+            + ") sourceClass(" + d.sourceClass + ")");
+
+      if (!d.profile.isEmpty()) {
+         out.println(Util.elapsedNanoFormatterSeconds(elapsed) + " <-- Wall clock time (human perception), profiled:");
+         for (Map.Entry<Long, long[]> e : d.profile.entrySet()) {
+            int height = (int) (e.getKey() >>> 32);
+            int frameId = (int) (long) e.getKey();
+            out.println(STACK_INDENT + Util.elapsedNanoFormatterSeconds(e.getValue()[0]) + " [" + height + "]"
+                  + frame(frameId));
+         }
+      }
+      else if (d.previousStack != null) {
+         out.println(" No thread profiling info. Last recorded stack:");
+         for (int i = 0; i < d.previousStack.length; i++) {
+            out.println((i > 0 ? STACK_INDENT + STACK_INDENT : STACK_INDENT) + frame(d.previousStack[i]));
+         }
+      }
+
+      for (String finding : d.findings) {
+         out.println(finding);
+      }
+
+      out.println(AsyncPrinter.Divider.END_DIVIDERS + tag + AsyncPrinter.Divider.END_DIVIDERS);
+   }
+
+   private static final class Dispatch {
+      long dispatchID;
+      long startNanos;
+      long lastSampleNanos;
+      long durationNanos;
+      int hangID = -1;
+      String eventClass;
+      String eventParam;
+      String sourceClass;
+      int[] previousStack = null;
+      final List<String> findings = new ArrayList<String>();
+
+      /** (height << 32 | frame ID) to elapsed nanos, ordered by height. */
+      final TreeMap<Long, long[]> profile = new TreeMap<Long, long[]>();
+
+      /**
+       * Credits the time since the previous sample to the deepest frame the two
+       * samples share. Stacks are innermost first, so they're compared from the end.
+       */
+      void addSample(final long nanos, final int[] stack) {
+         if (previousStack != null) {
+            int p = previousStack.length - 1;
+            int c = stack.length - 1;
+            int height = -1;
+            while ((p >= 0) && (c >= 0) && (previousStack[p] == stack[c])) {
+               height++;
+               p--;
+               c--;
+            }
+            if (height >= 0) {
+               long key = ((long) height << 32) | (previousStack[previousStack.length - 1 - height] & 0xFFFFFFFFL);
+               long[] total = profile.get(key);
+               if (total == null) {
+                  total = new long[1];
+                  profile.put(key, total);
+               }
+               total[0] += nanos - lastSampleNanos;
+            }
+         }
+         previousStack = stack;
+         lastSampleNanos = nanos;
+      }
+   }
+}
@@ -0,0 +1,314 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Dialog;
+import java.awt.Frame;
+import java.awt.Window;
+import java.awt.event.InvocationEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the events {@link EDTPerformanceMonitor} dispatches, so that
+ * {@link EventReplayer} can push the same stream through the queue again. That turns a
+ * customer's janky session into a repeatable benchmark, headless under Xvfb if need be.
+ * <p>
+ * Recorded per event: its type and ID, a path to its source component, its parameters,
+ * and when it was dispatched and for how long. Mouse and key events are recorded in
+ * full. {@code invokeLater} work can't be recorded, only its timing; replay stands in
+ * a runnable that keeps the EDT busy as long. Other events, such as paints, focus and
+ * window events, follow from those and aren't recorded.
+ * <p>
+ * The duration is self time. An event that opened a modal dialog was in the dialog's
+ * event loop from the first nested dispatch to the end of the last; that time was spent
+ * on the nested events, which are recorded and replayed on their own, or waiting for
+ * the user, and is left out. Records are in dispatch start order, a nested dispatch's
+ * after the one it nested in, so they are held back until the outermost dispatch ends.
+ * <p>
+ * Layout: {@code MAGIC VERSION} followed by records, each a type byte and its fields,
+ * written with {@link DataOutputStream}. See the {@code TYPE_*} constants. Every record
+ * but strings starts with {@code long offsetNanos, long durationNanos, int id}. A
+ * string is defined before the first record that uses it.
+ */
+public final class EventRecorder {
+   static final int MAGIC = 0x45445243; // "EDRC"
+   static final short VERSION = 1;
+
+   /** {@code int id, UTF value} */
+   static final byte TYPE_STRING = 1;
+   /**
+    * {@code ..., int sourcePath, int x, int y, int modifiersEx, int clickCount, int button,
+    * boolean popupTrigger}
+    */
+   static final byte TYPE_MOUSE = 2;
+   /** Mouse fields, then {@code int scrollType, int scrollAmount, int wheelRotation} */
+   static final byte TYPE_MOUSE_WHEEL = 3;
+   /** {@code ..., int sourcePath, int keyCode, char keyChar, int modifiersEx, int keyLocation} */
+   static final byte TYPE_KEY = 4;
+   /** {@code ..., int runnableClass} */
+   static final byte TYPE_INVOCATION = 5;
+
+   /** Separates the levels of a source path. */
+   static final char PATH_SEPARATOR = '/';
+   /** Marks a level found by component name rather than by index. */
+   static final char NAME_PREFIX = '#';
+
+   private static volatile EventRecorder current = null;
+
+   /**
+    * Starts recording to {@code file}, replacing any recording in progress.
+    */
+   public static synchronized void start(final File file) throws IOException {
+      EventRecorder previous = current;
+      current = new EventRecorder(file);
+      if (previous != null) {
+         previous.close();
+      }
+   }
+
+   public static synchronized void stop() throws IOException {
+      EventRecorder previous = current;
+      current = null;
+      if (previous != null) {
+         previous.close();
+      }
+   }
+
+   public static boolean isRecording() {
+      return current != null;
+   }
+
+   /**
+    * EDT. Called before the event is dispatched.
+    *
+    * @return what to pass to {@link #dispatched}, or null if not recording
+    */
+   static Object dispatching() {
+      EventRecorder r = current;
+      if (r != null) {
+         r.begin();
+      }
+      return r;
+   }
+
+   /**
+    * EDT. Called once the event has been dispatched, with what {@link #dispatching}
+    * returned for it.
+    */
+   static void dispatched(final Object recorder, final AWTEvent event, final long startNanos,
+         final long durationNanos) {
+      if (recorder != null) {
+         ((EventRecorder) recorder).end(event, startNanos, durationNanos);
+      }
+   }
+
+   // ////////////////////////////////////////////////////////////////
+
+   private final File file;
+   private final DataOutputStream out;
+   private final Map<String, Integer> strings = new HashMap<String, Integer>();
+   private final long originNanos = System.nanoTime();
+   private boolean failed = false;
+   private boolean closed = false;
+
+   /*
+    * Per level of dispatch nesting, the records of dispatches nested within the open one
+    * and when the first of them started and the last ended. EDT only.
+    */
+   private int depth = 0;
+   private ByteArrayOutputStream[] nestedRecords = new ByteArrayOutputStream[0];
+   private DataOutputStream[] nestedOut = new DataOutputStream[0];
+   private long[] nestedStartNanos = new long[0];
+   private long[] nestedEndNanos = new long[0];
+
+   /** Consecutive mouse events nearly always share a source. */
+   private Object lastSource = null;
+   private int lastSourcePath = -1;
+
+   private EventRecorder(final File file) throws IOException {
+      this.file = file;
+      this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+   }
+
+   private synchronized void close() throws IOException {
+      closed = true;
+      out.close();
+   }
+
+   private void begin() {
+      if (depth == nestedRecords.length) {
+         final int n = Math.max(4, depth * 2);
+         nestedRecords = Arrays.copyOf(nestedRecords, n);
+         nestedOut = Arrays.copyOf(nestedOut, n);
+         nestedStartNanos = Arrays.copyOf(nestedStartNanos, n);
+         nestedEndNanos = Arrays.copyOf(nestedEndNanos, n);
+      }
+      if (nestedRecords[depth] == null) {
+         nestedRecords[depth] = new ByteArrayOutputStream();
+         nestedOut[depth] = new DataOutputStream(nestedRecords[depth]);
+      }
+      nestedRecords[depth].reset();
+      nestedEndNanos[depth] = nestedStartNanos[depth] = -1;
+      depth++;
+   }
+
+   /**
+    * Writes the record of the dispatch that just ended, followed by those of the
+    * dispatches nested within it, into the records of the enclosing dispatch or, for the
+    * outermost, to the file.
+    */
+   private synchronized void end(final AWTEvent event, final long startNanos, final long durationNanos) {
+      if ((depth == 0) || closed) {
+         // Recording started in the middle of this dispatch, or has stopped.
+         return;
+      }
+      final int level = --depth;
+      final DataOutputStream dst = (level == 0) ? out : nestedOut[level - 1];
+      if (level > 0) {
+         if (nestedStartNanos[level - 1] == -1) {
+            nestedStartNanos[level - 1] = startNanos;
+         }
+         nestedEndNanos[level - 1] = startNanos + durationNanos;
+      }
+      final long nestedNanos = (nestedStartNanos[level] == -1) ? 0 : nestedEndNanos[level] - nestedStartNanos[level];
+      try {
+         write(dst, event, startNanos, durationNanos - nestedNanos);
+         nestedRecords[level].writeTo(dst);
+      }
+      catch (IOException e) {
+         if (!failed) {
+            failed = true;
+            System.err.println(EventRecorder.class.getSimpleName() + " failed writing " + file
+                  + ". Later errors will not be reported. Exception:");
+            e.printStackTrace();
+         }
+      }
+   }
+
+   private void write(final DataOutputStream dst, final AWTEvent event, final long startNanos,
+         final long durationNanos) throws IOException {
+      if (event instanceof MouseEvent) {
+         final MouseEvent e = (MouseEvent) event;
+         final int path = sourcePath(e.getSource());
+         if (path == -1) {
+            return;
+         }
+         final boolean wheel = e instanceof MouseWheelEvent;
+         writeHeader(dst, wheel ? TYPE_MOUSE_WHEEL : TYPE_MOUSE, startNanos, durationNanos, e.getID());
+         dst.writeInt(path);
+         dst.writeInt(e.getX());
+         dst.writeInt(e.getY());
+         dst.writeInt(e.getModifiersEx());
+         dst.writeInt(e.getClickCount());
+         dst.writeInt(e.getButton());
+         dst.writeBoolean(e.isPopupTrigger());
+         if (wheel) {
+            final MouseWheelEvent w = (MouseWheelEvent) e;
+            dst.writeInt(w.getScrollType());
+            dst.writeInt(w.getScrollAmount());
+            dst.writeInt(w.getWheelRotation());
+         }
+      }
+      else if (event instanceof KeyEvent) {
+         final KeyEvent e = (KeyEvent) event;
+         final int path = sourcePath(e.getSource());
+         if (path == -1) {
+            return;
+         }
+         writeHeader(dst, TYPE_KEY, startNanos, durationNanos, e.getID());
+         dst.writeInt(path);
+         dst.writeInt(e.getKeyCode());
+         dst.writeChar(e.getKeyChar());
+         dst.writeInt(e.getModifiersEx());
+         dst.writeInt(e.getKeyLocation());
+      }
+      else if (event instanceof InvocationEvent) {
+         final int runnable = stringId(InvocationAttribution.runnableName((InvocationEvent) event));
+         writeHeader(dst, TYPE_INVOCATION, startNanos, durationNanos, event.getID());
+         dst.writeInt(runnable);
+      }
+   }
+
+   private void writeHeader(final DataOutputStream dst, final byte type, final long startNanos,
+         final long durationNanos, final int id) throws IOException {
+      dst.writeByte(type);
+      dst.writeLong(startNanos - originNanos);
+      dst.writeLong(durationNanos);
+      dst.writeInt(id);
+   }
+
+   /** @return the string ID of the source's path, or -1 if it isn't in a window */
+   private int sourcePath(final Object source) throws IOException {
+      if (source != lastSource) {
+         final String path = (source instanceof Component) ? pathOf((Component) source) : null;
+         lastSourcePath = (path == null) ? -1 : stringId(path);
+         lastSource = source;
+      }
+      return lastSourcePath;
+   }
+
+   /**
+    * The window first, by class and title, then each level down by name if the component
+    * has one, otherwise by class and index in its parent. For example
+    * {@code javax.swing.JFrame[Editor]/javax.swing.JRootPane[0]/#toolbar}.
+    */
+   static String pathOf(final Component c) {
+      final Container parent = c.getParent();
+      if (parent == null) {
+         return (c instanceof Window) ? c.getClass().getName() + '[' + titleOf(c) + ']' : null;
+      }
+      final String parentPath = pathOf(parent);
+      if (parentPath == null) {
+         return null;
+      }
+      if (c.getName() != null) {
+         return parentPath + PATH_SEPARATOR + NAME_PREFIX + c.getName();
+      }
+      final Component[] siblings = parent.getComponents();
+      for (int i = 0; i < siblings.length; i++) {
+         if (siblings[i] == c) {
+            return parentPath + PATH_SEPARATOR + c.getClass().getName() + '[' + i + ']';
+         }
+      }
+      return null;
+   }
+
+   static String titleOf(final Component window) {
+      String title = null;
+      if (window instanceof Frame) {
+         title = ((Frame) window).getTitle();
+      }
+      else if (window instanceof Dialog) {
+         title = ((Dialog) window).getTitle();
+      }
+      return (title == null) ? "" : title;
+   }
+
+   /** Strings go straight to the file, ahead of any record still held back. */
+   private int stringId(final String s) throws IOException {
+      Integer id = strings.get(s);
+      if (id != null) {
+         return id;
+      }
+      id = strings.size();
+      strings.put(s, id);
+      out.writeByte(TYPE_STRING);
+      out.writeInt(id);
+      out.writeUTF(s);
+      return id;
+   }
+}
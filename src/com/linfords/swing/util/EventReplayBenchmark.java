@@ -0,0 +1,208 @@
+package com.linfords.swing.util;
+
+import java.awt.EventQueue;
+import java.awt.SecondaryLoop;
+import java.awt.Toolkit;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Regression benchmark for {@link EventRecorder} and {@link EventReplayer} that runs
+ * headless. It records a synthetic session of {@code invokeLater} work, some of which
+ * enters a secondary loop the way a modal dialog does, replays it, and compares the EDT
+ * time of the two runs. With a recording argument it replays that instead, which needs
+ * the recorded windows to be showing unless the recording is only invocations.
+ * <p>
+ * Usage:
+ * {@code java -Djava.awt.headless=true com.linfords.swing.util.EventReplayBenchmark [recording [speed]]}
+ */
+public final class EventReplayBenchmark {
+   private final static int TASKS = 400;
+   private final static long TASK_SPACING_MILLIS = 5;
+   /** Every this many tasks, one sits in a secondary loop as if showing a dialog. */
+   private final static int MODAL_EVERY = 100;
+   private final static long MODAL_THINK_MILLIS = 300;
+
+   public static void main(final String[] args) throws Exception {
+      if (args.length > 2) {
+         System.err.println("Usage: java " + EventReplayBenchmark.class.getName() + " [recording [speed]]");
+         System.exit(1);
+      }
+      final double speed = (args.length == 2) ? Double.parseDouble(args[1]) : 1;
+
+      EDTPerformanceMonitor.initMonitoring(new LoggingClassLoader());
+      settle();
+
+      File recording;
+      if (args.length > 0) {
+         recording = new File(args[0]);
+      }
+      else {
+         recording = File.createTempFile("replay-benchmark", ".edrc");
+         recording.deleteOnExit();
+         EDTPerformanceMonitor.getLatencyStats().reset();
+         final long start = System.nanoTime();
+         EventRecorder.start(recording);
+         record();
+         EventRecorder.stop();
+         System.out.println("recorded: elapsed(" + Util.elapsedNanoFormatterSeconds(System.nanoTime() - start)
+               + ") invocationEdtTime(" + Util.elapsedNanoFormatterSeconds(invocationNanos()) + ")");
+      }
+
+      final Scan scan = Scan.of(recording);
+      System.out.println("recording: " + scan);
+      if (!scan.inOrder) {
+         System.out.println("FAIL: records are out of offset order");
+      }
+
+      EDTPerformanceMonitor.getLatencyStats().reset();
+      final EventReplayer.Result result = new EventReplayer(recording).setSpeed(speed).replay();
+      System.out.println("replayed x" + speed + ": " + result + " invocationEdtTime("
+            + Util.elapsedNanoFormatterSeconds(invocationNanos()) + ")");
+      for (DispatchLatencyStats.Snapshot s : EDTPerformanceMonitor.getLatencyStats().snapshot()) {
+         System.out.println("   " + s);
+      }
+      System.exit(0);
+   }
+
+   /** Lets the monitor get past the dispatches it doesn't profile. */
+   private static void settle() throws Exception {
+      for (int i = 0; i < 10; i++) {
+         EventQueue.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+            }
+         });
+      }
+   }
+
+   private static void record() throws Exception {
+      for (int i = 0; i < TASKS; i++) {
+         final int task = i;
+         EventQueue.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+               if ((task % MODAL_EVERY) == MODAL_EVERY - 1) {
+                  think();
+               }
+               else {
+                  busy(Util.NANO_PER_MILLI * (task % 4));
+               }
+            }
+         });
+         Thread.sleep(TASK_SPACING_MILLIS);
+      }
+      settle();
+   }
+
+   /** EDT. Sits in a secondary loop, dispatching whatever arrives, as a modal dialog would. */
+   private static void think() {
+      final SecondaryLoop loop = Toolkit.getDefaultToolkit().getSystemEventQueue().createSecondaryLoop();
+      final Thread closer = new Thread("Closes the dialog") {
+         @Override
+         public void run() {
+            try {
+               Thread.sleep(MODAL_THINK_MILLIS);
+            }
+            catch (InterruptedException e) {
+               // Close it early.
+            }
+            loop.exit();
+         }
+      };
+      closer.start();
+      loop.enter();
+   }
+
+   private static void busy(final long nanos) {
+      final long end = System.nanoTime() + nanos;
+      while (System.nanoTime() - end < 0) {
+         // Spin.
+      }
+   }
+
+   /** EDT time of every {@code InvocationEvent} measured since the stats were reset. */
+   private static long invocationNanos() {
+      final List<DispatchLatencyStats.Snapshot> snapshots = EDTPerformanceMonitor.getLatencyStats().snapshot();
+      long total = 0;
+      for (DispatchLatencyStats.Snapshot s : snapshots) {
+         if (s.getEventClass().endsWith("InvocationEvent")) {
+            total += s.getMeanNanos() * s.getCount();
+         }
+      }
+      return total;
+   }
+
+   /** What a recording holds, read without replaying it. */
+   private static final class Scan {
+      int records = 0;
+      long recordedNanos = 0;
+      long maxNanos = 0;
+      boolean inOrder = true;
+
+      static Scan of(final File file) throws IOException {
+         final Scan scan = new Scan();
+         final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+         try {
+            if ((in.readInt() != EventRecorder.MAGIC) || (in.readShort() != EventRecorder.VERSION)) {
+               throw new IOException("Not an event recording of this version: " + file);
+            }
+            long lastOffset = Long.MIN_VALUE;
+            for (;;) {
+               final int type;
+               try {
+                  type = in.readByte();
+               }
+               catch (EOFException e) {
+                  break;
+               }
+               if (type == EventRecorder.TYPE_STRING) {
+                  in.readInt();
+                  in.readUTF();
+                  continue;
+               }
+               final long offset = in.readLong();
+               final long duration = in.readLong();
+               in.readInt();
+               switch (type) {
+               case EventRecorder.TYPE_MOUSE_WHEEL:
+                  in.skipBytes(12);
+                  in.skipBytes(25);
+                  break;
+               case EventRecorder.TYPE_MOUSE:
+                  in.skipBytes(25);
+                  break;
+               case EventRecorder.TYPE_KEY:
+                  in.skipBytes(18);
+                  break;
+               case EventRecorder.TYPE_INVOCATION:
+                  in.readInt();
+                  break;
+               default:
+                  throw new IOException("Unknown record type " + type);
+               }
+               scan.inOrder &= offset >= lastOffset;
+               lastOffset = offset;
+               scan.records++;
+               scan.recordedNanos += duration;
+               scan.maxNanos = Math.max(scan.maxNanos, duration);
+            }
+         }
+         finally {
+            in.close();
+         }
+         return scan;
+      }
+
+      @Override
+      public String toString() {
+         return "records(" + records + ") edtTime(" + Util.elapsedNanoFormatterSeconds(recordedNanos) + ") max("
+               + Util.elapsedNanoFormatterSeconds(maxNanos) + ") inOrder(" + inOrder + ")";
+      }
+   }
+}
@@ -0,0 +1,332 @@
+package com.linfords.swing.util;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.awt.Window;
+import java.awt.event.InvocationEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Posts a stream recorded by {@link EventRecorder} to the event queue again, at the
+ * original pace or faster, while {@link EDTPerformanceMonitor} measures the dispatches.
+ * The application must be showing the same windows as when it was recorded; events
+ * whose source can't be found are skipped and counted.
+ *
+ * <pre>
+ * EDTPerformanceMonitor.getLatencyStats().reset();
+ * EventReplayer.Result r = new EventReplayer(new File(&quot;session.edrc&quot;)).setSpeed(4).replay();
+ * List&lt;DispatchLatencyStats.Snapshot&gt; latency = EDTPerformanceMonitor.getLatencyStats().snapshot();
+ * </pre>
+ */
+public final class EventReplayer {
+   private final File file;
+   private double speed = 1;
+   private boolean simulateInvocations = true;
+
+   /** Offset of the first event; the idle time before it isn't replayed. */
+   private long firstOffsetNanos = -1;
+
+   private final Map<Integer, String> strings = new HashMap<Integer, String>();
+   private final Map<String, Component> resolved = new HashMap<String, Component>();
+
+   public EventReplayer(final File file) {
+      this.file = file;
+   }
+
+   /**
+    * @param speed
+    *        1 for the recorded pace, 2 for twice as fast, and so on. 0 posts everything
+    *        as fast as the queue takes it.
+    */
+   public EventReplayer setSpeed(final double speed) {
+      if (speed < 0) {
+         throw new IllegalArgumentException("speed(" + speed + ") must not be negative");
+      }
+      this.speed = speed;
+      return this;
+   }
+
+   /**
+    * Whether to stand in a runnable that keeps the EDT busy as long as each recorded
+    * {@code invokeLater} did, not counting any modal loop it ran. On by default,
+    * to reproduce the load of background work; turn it off when the application is
+    * doing that work itself.
+    */
+   public EventReplayer setSimulateInvocations(final boolean simulateInvocations) {
+      this.simulateInvocations = simulateInvocations;
+      return this;
+   }
+
+   /**
+    * Replays the whole stream and waits until the queue has dispatched it. Must not be
+    * called on the EDT.
+    */
+   public Result replay() throws IOException {
+      if (EventQueue.isDispatchThread()) {
+         throw new IllegalStateException("replay() would block the EDT it replays to");
+      }
+      final EventQueue queue = Toolkit.getDefaultToolkit().getSystemEventQueue();
+      final Result result = new Result();
+      final long startNanos = System.nanoTime();
+
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+      try {
+         if (in.readInt() != EventRecorder.MAGIC) {
+            throw new IOException("Not an event recording");
+         }
+         final short version = in.readShort();
+         if (version != EventRecorder.VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+         }
+
+         for (;;) {
+            final int type;
+            try {
+               type = in.readByte();
+            }
+            catch (EOFException e) {
+               break;
+            }
+            try {
+               replayRecord(type, in, queue, startNanos, result);
+            }
+            catch (EOFException e) {
+               // The recording was cut off mid-record. Everything before it is good.
+               break;
+            }
+         }
+      }
+      finally {
+         in.close();
+      }
+
+      waitForQueue();
+      result.elapsedNanos = System.nanoTime() - startNanos;
+      return result;
+   }
+
+   private void replayRecord(final int type, final DataInputStream in, final EventQueue queue,
+         final long startNanos, final Result result) throws IOException {
+      if (type == EventRecorder.TYPE_STRING) {
+         final int id = in.readInt();
+         strings.put(id, in.readUTF());
+         return;
+      }
+
+      final long offsetNanos = in.readLong();
+      if (firstOffsetNanos == -1) {
+         firstOffsetNanos = offsetNanos;
+      }
+      final long durationNanos = in.readLong();
+      final int id = in.readInt();
+
+      switch (type) {
+      case EventRecorder.TYPE_MOUSE:
+      case EventRecorder.TYPE_MOUSE_WHEEL: {
+         final String path = strings.get(in.readInt());
+         final int x = in.readInt();
+         final int y = in.readInt();
+         final int modifiersEx = in.readInt();
+         final int clickCount = in.readInt();
+         final int button = in.readInt();
+         final boolean popupTrigger = in.readBoolean();
+         int scrollType = 0;
+         int scrollAmount = 0;
+         int wheelRotation = 0;
+         if (type == EventRecorder.TYPE_MOUSE_WHEEL) {
+            scrollType = in.readInt();
+            scrollAmount = in.readInt();
+            wheelRotation = in.readInt();
+         }
+
+         final Component source = resolve(path);
+         if (source == null) {
+            result.unresolved++;
+            return;
+         }
+         waitUntil(startNanos, offsetNanos);
+         final long when = System.currentTimeMillis();
+         if (type == EventRecorder.TYPE_MOUSE_WHEEL) {
+            queue.postEvent(new MouseWheelEvent(source, id, when, modifiersEx, x, y, clickCount, popupTrigger,
+                  scrollType, scrollAmount, wheelRotation));
+         }
+         else {
+            queue.postEvent(new MouseEvent(source, id, when, modifiersEx, x, y, clickCount, popupTrigger, button));
+         }
+         result.replayed++;
+         break;
+      }
+      case EventRecorder.TYPE_KEY: {
+         final String path = strings.get(in.readInt());
+         final int keyCode = in.readInt();
+         final char keyChar = in.readChar();
+         final int modifiersEx = in.readInt();
+         final int keyLocation = in.readInt();
+
+         final Component source = resolve(path);
+         if (source == null) {
+            result.unresolved++;
+            return;
+         }
+         waitUntil(startNanos, offsetNanos);
+         queue.postEvent(new KeyEvent(source, id, System.currentTimeMillis(), modifiersEx, keyCode, keyChar,
+               keyLocation));
+         result.replayed++;
+         break;
+      }
+      case EventRecorder.TYPE_INVOCATION: {
+         in.readInt(); // runnable class, for reading the recording
+         if (!simulateInvocations) {
+            return;
+         }
+         waitUntil(startNanos, offsetNanos);
+         queue.postEvent(new InvocationEvent(Toolkit.getDefaultToolkit(), new Busy(durationNanos)));
+         result.replayed++;
+         break;
+      }
+      default:
+         throw new IOException("Unknown record type " + type);
+      }
+   }
+
+   private void waitUntil(final long startNanos, final long offsetNanos) {
+      if (speed == 0) {
+         return;
+      }
+      final long due = startNanos + (long) ((offsetNanos - firstOffsetNanos) / speed);
+      long wait;
+      while ((wait = due - System.nanoTime()) > 0) {
+         LockSupport.parkNanos(this, wait);
+      }
+   }
+
+   /** Waits for the queue to dispatch everything posted before. */
+   private static void waitForQueue() {
+      try {
+         EventQueue.invokeAndWait(new Runnable() {
+            @Override
+            public void run() {
+            }
+         });
+      }
+      catch (Exception e) {
+         // The stream has been posted; only the wait for its dispatch failed.
+      }
+   }
+
+   /**
+    * Finds the component a recorded path names, see {@link EventRecorder#pathOf}.
+    */
+   private Component resolve(final String path) {
+      if (path == null) {
+         return null;
+      }
+      Component c = resolved.get(path);
+      if ((c != null) && c.isDisplayable()) {
+         return c;
+      }
+      final String[] levels = path.split(String.valueOf(EventRecorder.PATH_SEPARATOR));
+      c = findWindow(levels[0]);
+      for (int i = 1; (c != null) && (i < levels.length); i++) {
+         c = findChild((Container) c, levels[i]);
+      }
+      if (c != null) {
+         resolved.put(path, c);
+      }
+      return c;
+   }
+
+   private static Component findWindow(final String level) {
+      for (Window w : Window.getWindows()) {
+         if (level.equals(w.getClass().getName() + '[' + EventRecorder.titleOf(w) + ']') && w.isDisplayable()) {
+            return w;
+         }
+      }
+      return null;
+   }
+
+   private static Component findChild(final Container parent, final String level) {
+      synchronized (parent.getTreeLock()) {
+         final Component[] children = parent.getComponents();
+         if (level.charAt(0) == EventRecorder.NAME_PREFIX) {
+            final String name = level.substring(1);
+            for (Component child : children) {
+               if (name.equals(child.getName())) {
+                  return child;
+               }
+            }
+            return null;
+         }
+
+         final int open = level.lastIndexOf('[');
+         final String className = level.substring(0, open);
+         final int index = Integer.parseInt(level.substring(open + 1, level.length() - 1));
+         if ((index < children.length) && children[index].getClass().getName().equals(className)) {
+            return children[index];
+         }
+         // The layout changed a little since the recording; take the first of the class.
+         for (Component child : children) {
+            if (child.getClass().getName().equals(className)) {
+               return child;
+            }
+         }
+         return null;
+      }
+   }
+
+   /** Stands in for a recorded {@code invokeLater}. */
+   private static final class Busy implements Runnable {
+      private final long nanos;
+
+      Busy(final long nanos) {
+         this.nanos = nanos;
+      }
+
+      @Override
+      public void run() {
+         final long end = System.nanoTime() + nanos;
+         while (System.nanoTime() - end < 0) {
+            // Spin: the point is to occupy the EDT.
+         }
+      }
+   }
+
+   public static final class Result {
+      private int replayed = 0;
+      private int unresolved = 0;
+      private long elapsedNanos = 0;
+
+      public int getReplayed() {
+         return replayed;
+      }
+
+      /** Events skipped because their source component couldn't be found. */
+      public int getUnresolved() {
+         return unresolved;
+      }
+
+      /** From the first post until the queue had dispatched the last. */
+      public long getElapsedNanos() {
+         return elapsedNanos;
+      }
+
+      @Override
+      public String toString() {
+         return "replayed(" + replayed + ") unresolved(" + unresolved + ") elapsed("
+               + Util.elapsedNanoFormatterSeconds(elapsedNanos) + ")";
+      }
+   }
+}
@@ -0,0 +1,278 @@
+package com.linfords.swing.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link AsyncPrinter.Sink} that sends the same output to several other sinks, such as
+ * the console, a {@link MappedFileSink} and a collector socket.
+ * <p>
+ * Expressions are still evaluated and encoded once, by the printer thread. Each batch
+ * is copied once into a shared ring of chunks. Every attached sink has its own
+ * {@link Branch}: a writer thread with its own cursor into the ring. So a slow sink
+ * holds back only itself, unless it asked for {@link LagPolicy#BLOCK}.
+ *
+ * <pre>
+ * FanOutSink fanOut = new FanOutSink(256);
+ * fanOut.attach(&quot;console&quot;, new AsyncPrinter.PrintStreamSink(System.out), FanOutSink.LagPolicy.DROP);
+ * fanOut.attach(&quot;file&quot;, new MappedFileSink(dir, &quot;edt&quot;, 16 &lt;&lt; 20, 8), FanOutSink.LagPolicy.BLOCK);
+ * AsyncPrinter aout = new AsyncPrinter(fanOut, &quot;fanOut&quot;);
+ * </pre>
+ */
+public class FanOutSink implements AsyncPrinter.Sink {
+   private final static long BLOCK_RETRY_NANOS = 50 * 1000;
+   /** How long an interrupted branch gets to close its sink before it is abandoned. */
+   private final static long INTERRUPTED_CLOSE_MILLIS = 100;
+
+   /** What a branch does when it falls a full ring behind. */
+   public static enum LagPolicy {
+      /** The printer thread waits for this branch. Nothing is lost. */
+      BLOCK,
+      /** This branch skips ahead to the oldest chunk still in the ring. */
+      DROP
+   }
+
+   /** One published batch. The sequence tells a lapped reader it was overwritten. */
+   private static final class Chunk {
+      final long sequence;
+      final byte[] bytes;
+
+      Chunk(final long sequence, final byte[] bytes) {
+         this.sequence = sequence;
+         this.bytes = bytes;
+      }
+   }
+
+   private final int capacity;
+   private final int mask;
+   private final AtomicReferenceArray<Chunk> ring;
+
+   /** Number of chunks published. Only the printer thread writes it. */
+   private final AtomicLong published = new AtomicLong();
+   private final AtomicLong publishedBytes = new AtomicLong();
+
+   private final List<Branch> branches = new CopyOnWriteArrayList<Branch>();
+   private volatile boolean closed = false;
+   private volatile long closeTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+
+   /**
+    * @param capacity
+    *        number of batches buffered for the slowest branch. Rounded up to a power
+    *        of two.
+    */
+   public FanOutSink(final int capacity) {
+      if (capacity < 2) {
+         throw new IllegalArgumentException("capacity(" + capacity + ") must be at least 2");
+      }
+      int c = Integer.highestOneBit(capacity - 1) << 1;
+      this.capacity = c;
+      this.mask = c - 1;
+      this.ring = new AtomicReferenceArray<Chunk>(c);
+   }
+
+   /**
+    * Starts a writer thread for {@code sink}. It receives everything published from
+    * now on.
+    */
+   public Branch attach(final String name, final AsyncPrinter.Sink sink, final LagPolicy policy) {
+      if (closed) {
+         throw new IllegalStateException("FanOutSink is closed");
+      }
+      Branch branch = new Branch(name, sink, policy, published.get());
+      branches.add(branch);
+      branch.start();
+      return branch;
+   }
+
+   public List<Branch> getBranches() {
+      return branches;
+   }
+
+   /**
+    * How long {@link #close()} waits, in all, for the branches to write what has been
+    * published. A branch still writing after that, such as one stuck on a dead socket,
+    * is interrupted and left behind with the rest of its output unwritten.
+    */
+   public void setCloseTimeout(final long timeout, final TimeUnit unit) {
+      this.closeTimeoutNanos = unit.toNanos(timeout);
+   }
+
+   @Override
+   public void write(final ByteBuffer rendered) {
+      final byte[] bytes = new byte[rendered.remaining()];
+      rendered.get(bytes);
+
+      final long sequence = published.get();
+      for (Branch b : branches) {
+         if (b.policy == LagPolicy.BLOCK) {
+            // The slot about to be reused still holds this branch's next chunk.
+            while ((sequence - b.cursor.get() >= capacity) && b.isAlive()) {
+               LockSupport.parkNanos(this, BLOCK_RETRY_NANOS);
+            }
+         }
+      }
+
+      ring.set((int) sequence & mask, new Chunk(sequence, bytes));
+      publishedBytes.addAndGet(bytes.length);
+      published.set(sequence + 1);
+
+      for (Branch b : branches) {
+         LockSupport.unpark(b);
+      }
+   }
+
+   /**
+    * Lets every branch write what has been published, then closes the branch sinks.
+    * Waits no longer than the {@link #setCloseTimeout close timeout} for that.
+    */
+   @Override
+   public void close() throws IOException {
+      closed = true;
+      for (Branch b : branches) {
+         LockSupport.unpark(b);
+      }
+      final long deadline = System.nanoTime() + closeTimeoutNanos;
+      for (Branch b : branches) {
+         try {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+               TimeUnit.NANOSECONDS.timedJoin(b, remaining);
+            }
+            if (b.isAlive()) {
+               abandon(b);
+            }
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+   }
+
+   /**
+    * Interrupts a branch that didn't finish in time, which aborts a write to an
+    * interruptible channel and stops it writing more, and gives it a moment to close its
+    * sink. A write that ignores interrupts is left to finish on its own; the branch is a
+    * daemon thread, so it won't hold up exit.
+    */
+   private void abandon(final Branch b) throws InterruptedException {
+      final long unwritten = b.lagChunks();
+      b.abandoned = true;
+      b.interrupt();
+      b.join(INTERRUPTED_CLOSE_MILLIS);
+      System.err.println("Thread '" + b.getName() + "' didn't finish writing within the close timeout"
+            + " and was interrupted" + (b.isAlive() ? " and abandoned" : "") + ", leaving " + unwritten
+            + " batches unwritten.");
+   }
+
+   /**
+    * Writer thread of one attached sink.
+    */
+   public final class Branch extends Thread {
+      private final AsyncPrinter.Sink sink;
+      private final LagPolicy policy;
+
+      /** Sequence of the next chunk this branch will write. */
+      private final AtomicLong cursor;
+      private final AtomicLong writtenBytes = new AtomicLong();
+      private final AtomicLong droppedChunks = new AtomicLong();
+      private final AtomicLong failedWrites = new AtomicLong();
+
+      /** Set by {@link FanOutSink#close()} when it gives up waiting for this branch. */
+      private volatile boolean abandoned = false;
+
+      private Branch(final String name, final AsyncPrinter.Sink sink, final LagPolicy policy,
+            final long startSequence) {
+         super("FanOutSink-" + name);
+         setDaemon(true);
+         this.sink = sink;
+         this.policy = policy;
+         this.cursor = new AtomicLong(startSequence);
+      }
+
+      public LagPolicy getPolicy() {
+         return policy;
+      }
+
+      /** Batches published but not yet written by this branch. */
+      public long lagChunks() {
+         return published.get() - cursor.get();
+      }
+
+      /** Bytes published but not written by this branch, dropped chunks included. */
+      public long lagBytes() {
+         return Math.max(0, publishedBytes.get() - writtenBytes.get());
+      }
+
+      public long droppedChunks() {
+         return droppedChunks.get();
+      }
+
+      public long failedWrites() {
+         return failedWrites.get();
+      }
+
+      @Override
+      public void run() {
+         try {
+            for (;;) {
+               if (abandoned) {
+                  return;
+               }
+               final long next = cursor.get();
+               if (next == published.get()) {
+                  if (closed) {
+                     return;
+                  }
+                  LockSupport.park(this);
+                  continue;
+               }
+
+               final Chunk chunk = ring.get((int) next & mask);
+               if ((chunk == null) || (chunk.sequence != next)) {
+                  // Lapped by the printer thread; only possible with DROP. Resume at
+                  // the oldest chunk still in the ring. If the overwriting chunk isn't
+                  // published yet this comes out as no change, and we look again.
+                  final long oldest = Math.max(next, published.get() - capacity);
+                  droppedChunks.addAndGet(oldest - next);
+                  cursor.set(oldest);
+                  continue;
+               }
+
+               write(chunk.bytes);
+               writtenBytes.addAndGet(chunk.bytes.length);
+               cursor.set(next + 1);
+            }
+         }
+         finally {
+            try {
+               sink.close();
+            }
+            catch (IOException e) {
+               System.err.println("Thread '" + getName() + "' failed to close its sink. Exception:");
+               e.printStackTrace();
+            }
+         }
+      }
+
+      private void write(final byte[] bytes) {
+         try {
+            // Each branch gets its own buffer over the shared bytes. Sinks only read them.
+            sink.write(ByteBuffer.wrap(bytes));
+         }
+         catch (IOException e) {
+            if ((failedWrites.getAndIncrement() == 0) && !abandoned) {
+               System.err.println("Thread '" + getName() + "' failed to write " + bytes.length
+                     + " bytes and will continue. Later errors will not be reported. Exception:");
+               e.printStackTrace();
+            }
+         }
+      }
+   }
+}
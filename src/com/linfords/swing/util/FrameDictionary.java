@@ -0,0 +1,69 @@
+package com.linfords.swing.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns stack frames to small, dense int IDs. An ID is assigned the first time a
+ * frame is seen and never changes, so a stack can be stored, compared and written as
+ * an {@code int[]}.
+ * <p>
+ * Lookups of known frames take no lock. Frames are never removed; the number of
+ * distinct frames a program executes is bounded by its code.
+ */
+final class FrameDictionary {
+   static final FrameDictionary GLOBAL = new FrameDictionary();
+
+   private final ConcurrentHashMap<StackTraceElement, Integer> ids = new ConcurrentHashMap<StackTraceElement, Integer>();
+
+   /** ID to frame. Replaced, never modified in place, when it needs to grow. */
+   private volatile StackTraceElement[] frames = new StackTraceElement[1024];
+   private int size = 0;
+
+   int intern(final StackTraceElement frame) {
+      Integer id = ids.get(frame);
+      if (id != null) {
+         return id;
+      }
+
+      synchronized (this) {
+         id = ids.get(frame);
+         if (id != null) {
+            return id;
+         }
+
+         StackTraceElement[] current = frames;
+         if (size == current.length) {
+            StackTraceElement[] grown = new StackTraceElement[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, size);
+            current = grown;
+         }
+         current[size] = frame;
+         frames = current;
+         id = size++;
+         // Publish the ID only once the frame can be looked up by it.
+         ids.put(frame, id);
+         return id;
+      }
+   }
+
+   /**
+    * Interns every frame of {@code stack} into {@code target}, which must be at least
+    * as long.
+    *
+    * @return the number of frames written
+    */
+   int intern(final StackTraceElement[] stack, final int[] target) {
+      for (int i = 0; i < stack.length; i++) {
+         target[i] = intern(stack[i]);
+      }
+      return stack.length;
+   }
+
+   StackTraceElement frame(final int id) {
+      return frames[id];
+   }
+
+   synchronized int size() {
+      return size;
+   }
+}
@@ -0,0 +1,423 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.awt.event.InvocationEvent;
+import java.lang.StackWalker.StackFrame;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Total EDT time of {@code invokeLater} and {@code invokeAndWait} work, by submitter.
+ * An {@link InvocationEvent}'s class and paramString say nothing about whose code ran;
+ * this attributes each one to:
+ * <ul>
+ * <li>the class of its runnable. The runnable is read by reflection where the JVM
+ * allows it, which costs nothing per event, and then every invocation is attributed.
+ * Java 16 and later refuse unless started with
+ * {@code --add-opens java.desktop/java.awt.event=ALL-UNNAMED}; without it the class is
+ * taken from the event's {@code paramString()}, which names the runnable by its
+ * {@code toString()}: the class, unless the runnable overrides it. That builds several
+ * strings, so then only one in {@code PARAMS_SAMPLING} invocations is attributed, and
+ * the report says so. Add the flag for full attribution.</li>
+ * <li>optionally, the call site that posted it: the first frame outside the JDK.
+ * Walking the stack on every post is too expensive, so only one in
+ * {@link #setCallSiteSampling N} posts is walked, and only as far as that frame.</li>
+ * </ul>
+ * The result shows which subsystems flood the EDT with work. It is printed periodically
+ * along with {@link DispatchLatencyStats}.
+ */
+public final class InvocationAttribution {
+   private final static AsyncPrinter aout = AsyncPrinter.defaultInstance();
+
+   private final static Field RUNNABLE_FIELD = runnableField();
+
+   /** Without reflection, one in this many invocations is named from its paramString(). */
+   private final static int PARAMS_SAMPLING = 16;
+
+   /** Runnable classes as attributed, computed once per class. */
+   private final static ClassValue<String> NAMES = new ClassValue<String>() {
+      @Override
+      protected String computeValue(final Class<?> type) {
+         return withoutLambdaSuffix(type.getName());
+      }
+   };
+
+   private final static String RUNNABLE_PARAM = ",runnable=";
+   private final static String NOTIFIER_PARAM = ",notifier=";
+
+   private final static StackWalker WALKER = StackWalker.getInstance();
+
+   /** The first frame outside the JDK and this monitor, or null if there is none. */
+   private final static Function<Stream<StackFrame>, String> CALL_SITE = new Function<Stream<StackFrame>, String>() {
+      @Override
+      public String apply(final Stream<StackFrame> frames) {
+         for (Iterator<StackFrame> it = frames.iterator(); it.hasNext();) {
+            final StackFrame frame = it.next();
+            if (!isJdkOrMonitor(frame.getClassName())) {
+               return frame.toStackTraceElement().toString();
+            }
+         }
+         return null;
+      }
+   };
+
+   private final static int MAX_SUBMITTERS = 1024;
+   private final static String OTHER = "(other)";
+   private final static String UNKNOWN = "(unknown runnable)";
+
+   /** Posted events with a captured call site. A power of two. */
+   private final static int POSTED_CAPACITY = 1024;
+
+   /** Top submitters printed in each view. */
+   private final static int REPORT_LIMIT = 20;
+
+   private static Field runnableField() {
+      try {
+         final Field f = InvocationEvent.class.getDeclaredField("runnable");
+         f.setAccessible(true);
+         return f;
+      }
+      catch (Exception e) {
+         // Includes the module system's InaccessibleObjectException.
+         return null;
+      }
+   }
+
+   private final Map<String, Submitter> byRunnable = new ConcurrentHashMap<String, Submitter>();
+   private final Map<String, Submitter> byCallSite = new ConcurrentHashMap<String, Submitter>();
+
+   /** Call sites of sampled posts, by the event's identity hash. */
+   private final AtomicReferenceArray<Object[]> callSites = new AtomicReferenceArray<Object[]>(POSTED_CAPACITY);
+
+   private volatile int callSiteSampling = 0;
+
+   private Timer timer = null;
+   private final AtomicLong emittedAtCount = new AtomicLong(-1);
+   private final AtomicLong invocations = new AtomicLong();
+
+   InvocationAttribution() {
+   }
+
+   /**
+    * Captures the posting call site of one in {@code n} invocations. Zero, the default,
+    * turns it off.
+    */
+   public void setCallSiteSampling(final int n) {
+      if (n < 0) {
+         throw new IllegalArgumentException("n(" + n + ") must not be negative");
+      }
+      callSiteSampling = n;
+   }
+
+   public int getCallSiteSampling() {
+      return callSiteSampling;
+   }
+
+   /**
+    * Any thread. Called just before the event is posted.
+    */
+   void posted(final AWTEvent event) {
+      final int n = callSiteSampling;
+      if ((n == 0) || !(event instanceof InvocationEvent)) {
+         return;
+      }
+      final int h = System.identityHashCode(event);
+      if ((h & Integer.MAX_VALUE) % n != 0) {
+         return;
+      }
+      final String site = WALKER.walk(CALL_SITE);
+      if (site != null) {
+         callSites.set(indexOf(h), new Object[] { event, site });
+      }
+   }
+
+   /**
+    * EDT only. Called once the event has been dispatched.
+    */
+   void dispatched(final AWTEvent event, final long durationNanos) {
+      if (!(event instanceof InvocationEvent)) {
+         return;
+      }
+      invocations.incrementAndGet();
+      if ((RUNNABLE_FIELD != null)
+            || ((System.identityHashCode(event) & Integer.MAX_VALUE) % PARAMS_SAMPLING == 0)) {
+         submitter(byRunnable, runnableName((InvocationEvent) event)).record(durationNanos);
+      }
+
+      if (callSiteSampling != 0) {
+         final int i = indexOf(System.identityHashCode(event));
+         final Object[] posted = callSites.get(i);
+         if ((posted != null) && (posted[0] == event) && callSites.compareAndSet(i, posted, null)) {
+            submitter(byCallSite, (String) posted[1]).record(durationNanos);
+         }
+      }
+   }
+
+   /**
+    * The runnable's class, with the generated suffix of lambda classes removed so that
+    * all the lambdas of one class count together.
+    */
+   static String runnableName(final InvocationEvent event) {
+      final Object runnable;
+      if (RUNNABLE_FIELD != null) {
+         try {
+            runnable = RUNNABLE_FIELD.get(event);
+         }
+         catch (Exception e) {
+            return UNKNOWN;
+         }
+      }
+      else {
+         final String name = runnableNameFromParams(event);
+         return (name == null) ? UNKNOWN : withoutLambdaSuffix(name);
+      }
+      // Null if constructed with a notifier only, or subclassed.
+      return NAMES.get((runnable == null) ? event.getClass() : runnable.getClass());
+   }
+
+   private static String withoutLambdaSuffix(final String name) {
+      final int lambda = name.indexOf("$$Lambda");
+      return (lambda == -1) ? name : name.substring(0, lambda + "$$Lambda".length());
+   }
+
+   /**
+    * The runnable as {@code paramString()} names it, without the identity hash that
+    * {@code Object.toString()} appends, or null if it can't be found.
+    */
+   static String runnableNameFromParams(final InvocationEvent event) {
+      final String params = event.paramString();
+      final int start = params.indexOf(RUNNABLE_PARAM);
+      final int end = params.lastIndexOf(NOTIFIER_PARAM);
+      if ((start == -1) || (end < start)) {
+         return null;
+      }
+      String runnable = params.substring(start + RUNNABLE_PARAM.length(), end);
+      if (runnable.equals("null")) {
+         return event.getClass().getName();
+      }
+      final int at = runnable.lastIndexOf('@');
+      if ((at > 0) && isHex(runnable, at + 1)) {
+         runnable = runnable.substring(0, at);
+      }
+      return runnable;
+   }
+
+   private static boolean isHex(final String s, final int from) {
+      if (from == s.length()) {
+         return false;
+      }
+      for (int i = from; i < s.length(); i++) {
+         if (Character.digit(s.charAt(i), 16) == -1) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static boolean isJdkOrMonitor(final String c) {
+      return c.startsWith("java.") || c.startsWith("javax.") || c.startsWith("sun.") || c.startsWith("jdk.")
+            || c.startsWith("com.sun.") || c.equals(InvocationAttribution.class.getName())
+            || c.equals(EDTPerformanceMonitor.class.getName());
+   }
+
+   private static int indexOf(final int identityHash) {
+      return (identityHash ^ (identityHash >>> 16)) & (POSTED_CAPACITY - 1);
+   }
+
+   private Submitter submitter(final Map<String, Submitter> view, final String name) {
+      final Submitter s = view.get(name);
+      return (s != null) ? s : newSubmitter(view, name);
+   }
+
+   private synchronized Submitter newSubmitter(final Map<String, Submitter> view, final String name) {
+      Submitter s = view.get(name);
+      if (s == null) {
+         final String key = (view.size() >= MAX_SUBMITTERS) ? OTHER : name;
+         s = view.get(key);
+         if (s == null) {
+            s = new Submitter(key);
+            view.put(key, s);
+         }
+      }
+      return s;
+   }
+
+   /** Submitters by runnable class, most EDT time first. */
+   public List<Snapshot> snapshotByRunnable() {
+      return snapshot(byRunnable);
+   }
+
+   /** Submitters by sampled call site, most EDT time first. Empty unless sampling is on. */
+   public List<Snapshot> snapshotByCallSite() {
+      return snapshot(byCallSite);
+   }
+
+   private static List<Snapshot> snapshot(final Map<String, Submitter> view) {
+      final List<Snapshot> snapshots = new ArrayList<Snapshot>(view.size());
+      for (Submitter s : view.values()) {
+         if (s.histogram.count() > 0) {
+            snapshots.add(new Snapshot(s));
+         }
+      }
+      Collections.sort(snapshots, new Comparator<Snapshot>() {
+         @Override
+         public int compare(final Snapshot a, final Snapshot b) {
+            return (a.totalNanos < b.totalNanos) ? 1 : ((a.totalNanos == b.totalNanos) ? 0 : -1);
+         }
+      });
+      return snapshots;
+   }
+
+   public void reset() {
+      for (Submitter s : byRunnable.values()) {
+         s.reset();
+      }
+      for (Submitter s : byCallSite.values()) {
+         s.reset();
+      }
+   }
+
+   /**
+    * How often the report is printed, if anything was invoked in between. Zero stops it.
+    */
+   public synchronized void setEmitInterval(final long interval, final TimeUnit unit) {
+      if (timer != null) {
+         timer.cancel();
+         timer = null;
+      }
+      final long millis = unit.toMillis(interval);
+      if (millis > 0) {
+         timer = new Timer("EDT Invocation Attribution", true);
+         timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+               emit();
+            }
+         }, millis, millis);
+      }
+   }
+
+   private void emit() {
+      final long total = invocations.get();
+      if (emittedAtCount.getAndSet(total) == total) {
+         return;
+      }
+      // Rendered by the printer thread.
+      aout.add(new AsyncPrinter.Expression() {
+         @Override
+         public Object eval() {
+            final StringBuilder sb = new StringBuilder();
+            format(sb, (RUNNABLE_FIELD != null) ? "EDT time by invokeLater/invokeAndWait runnable:"
+                  : "EDT time by invokeLater/invokeAndWait runnable (1 in " + PARAMS_SAMPLING
+                        + " sampled; run with --add-opens java.desktop/java.awt.event=ALL-UNNAMED for all):",
+                  snapshotByRunnable());
+            final int n = callSiteSampling;
+            if (n != 0) {
+               format(sb, "EDT time by posting call site (1 in " + n + " posts sampled):", snapshotByCallSite());
+            }
+            return sb;
+         }
+      });
+   }
+
+   static void format(final StringBuilder sb, final String title, final List<Snapshot> snapshots) {
+      sb.append(title).append('\n');
+      sb.append(String.format("%12s %9s %8s %8s %8s  %s%n", "total ms", "count", "mean", "p99", "max", "submitter"));
+      int printed = 0;
+      for (Snapshot s : snapshots) {
+         if (printed++ == REPORT_LIMIT) {
+            sb.append(String.format("%12s  ... %d more%n", "", snapshots.size() - REPORT_LIMIT));
+            break;
+         }
+         sb.append(String.format("%12.1f %9d %8.2f %8.2f %8.2f  %s%n", millis(s.totalNanos), s.count,
+               millis(s.meanNanos), millis(s.p99Nanos), millis(s.maxNanos), s.name));
+      }
+   }
+
+   private static double millis(final long nanos) {
+      return nanos / (double) Util.NANO_PER_MILLI;
+   }
+
+   /** EDT time of one submitter at the time it was taken. */
+   public static final class Snapshot {
+      private final String name;
+      private final long count;
+      private final long totalNanos;
+      private final long meanNanos;
+      private final long p99Nanos;
+      private final long maxNanos;
+
+      private Snapshot(final Submitter s) {
+         this.name = s.name;
+         this.count = s.histogram.count();
+         this.totalNanos = s.totalNanos.get();
+         this.meanNanos = s.histogram.mean();
+         this.p99Nanos = s.histogram.percentile(99);
+         this.maxNanos = s.histogram.max();
+      }
+
+      /** Runnable class or call site. */
+      public String getName() {
+         return name;
+      }
+
+      public long getCount() {
+         return count;
+      }
+
+      public long getTotalNanos() {
+         return totalNanos;
+      }
+
+      public long getMeanNanos() {
+         return meanNanos;
+      }
+
+      public long getP99Nanos() {
+         return p99Nanos;
+      }
+
+      public long getMaxNanos() {
+         return maxNanos;
+      }
+
+      @Override
+      public String toString() {
+         return name + ": count(" + count + ") total(" + Util.elapsedNanoFormatterSeconds(totalNanos) + ") max("
+               + Util.elapsedNanoFormatterSeconds(maxNanos) + ")";
+      }
+   }
+
+   private static final class Submitter {
+      final String name;
+      final LatencyHistogram histogram = new LatencyHistogram();
+      final AtomicLong totalNanos = new AtomicLong();
+
+      Submitter(final String name) {
+         this.name = name;
+      }
+
+      void record(final long nanos) {
+         histogram.record(nanos);
+         totalNanos.addAndGet(nanos);
+      }
+
+      void reset() {
+         histogram.reset();
+         totalNanos.set(0);
+      }
+   }
+}
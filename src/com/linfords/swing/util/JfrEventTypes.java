@@ -0,0 +1,162 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+import java.awt.event.InvocationEvent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR event types behind {@link JfrEvents}. Nothing else may refer to this class, so
+ * that it is never loaded on a JVM without {@code jdk.jfr}.
+ */
+final class JfrEventTypes {
+   private static EventType dispatchType;
+   private static EventType hangType;
+   private static EventType contentionType;
+
+   private JfrEventTypes() {
+   }
+
+   static boolean register() {
+      dispatchType = EventType.getEventType(Dispatch.class);
+      hangType = EventType.getEventType(Hang.class);
+      contentionType = EventType.getEventType(Contention.class);
+      return true;
+   }
+
+   static Object dispatchStarted() {
+      if (!dispatchType.isEnabled()) {
+         return null;
+      }
+      final Dispatch d = new Dispatch();
+      d.begin();
+      return d;
+   }
+
+   static void dispatchEnded(final Object jfrEvent, final long dispatchID, final AWTEvent event,
+         final long queueWaitNanos) {
+      final Dispatch d = (Dispatch) jfrEvent;
+      d.end();
+      if (!d.shouldCommit()) {
+         return;
+      }
+      d.dispatchID = dispatchID;
+      d.eventClass = event.getClass().getName();
+      d.eventId = event.getID();
+      d.sourceClass = (event.getSource() == null) ? null : event.getSource().getClass().getName();
+      d.runnableClass = (event instanceof InvocationEvent) ? InvocationAttribution
+            .runnableName((InvocationEvent) event) : null;
+      d.queueWait = queueWaitNanos;
+      d.commit();
+   }
+
+   static void hang(final long dispatchID, final int hangID, final long durationNanos, final AWTEvent event,
+         final String cruxFrame) {
+      if (!hangType.isEnabled()) {
+         return;
+      }
+      final Hang h = new Hang();
+      h.dispatchID = dispatchID;
+      h.hangID = hangID;
+      h.hangDuration = durationNanos;
+      h.eventClass = event.getClass().getName();
+      h.sourceClass = (event.getSource() == null) ? null : event.getSource().getClass().getName();
+      h.cruxFrame = cruxFrame;
+      h.commit();
+   }
+
+   static void contention(final long dispatchID, final String risk, final String threadName, final String finding) {
+      if (!contentionType.isEnabled()) {
+         return;
+      }
+      final Contention c = new Contention();
+      c.dispatchID = dispatchID;
+      c.risk = risk;
+      c.threadName = threadName;
+      c.finding = finding;
+      c.commit();
+   }
+
+   @Name("com.linfords.swing.EDTDispatch")
+   @Label("EDT Dispatch")
+   @Category({ "Swing", "EDT" })
+   @Description("One event dispatched by the AWT event dispatch thread. Includes nested dispatches.")
+   @Threshold("20 ms")
+   @StackTrace(false)
+   static final class Dispatch extends Event {
+      @Label("Dispatch ID")
+      long dispatchID;
+
+      @Label("Event Class")
+      String eventClass;
+
+      @Label("Event ID")
+      int eventId;
+
+      @Label("Source Class")
+      String sourceClass;
+
+      @Label("Runnable Class")
+      @Description("For invokeLater and invokeAndWait")
+      String runnableClass;
+
+      @Label("Queue Wait")
+      @Description("Time between posting and dispatch, or -1 if unknown")
+      @Timespan(Timespan.NANOSECONDS)
+      long queueWait;
+   }
+
+   @Name("com.linfords.swing.EDTHang")
+   @Label("EDT Hang")
+   @Category({ "Swing", "EDT" })
+   @Description("A dispatch long enough to be reported as a hang, emitted as it ends")
+   @StackTrace(false)
+   static final class Hang extends Event {
+      @Label("Dispatch ID")
+      long dispatchID;
+
+      @Label("Hang ID")
+      int hangID;
+
+      @Label("Hang Duration")
+      @Timespan(Timespan.NANOSECONDS)
+      long hangDuration;
+
+      @Label("Event Class")
+      String eventClass;
+
+      @Label("Source Class")
+      String sourceClass;
+
+      @Label("Crux Frame")
+      @Description("The frame the most time was credited to")
+      String cruxFrame;
+   }
+
+   @Name("com.linfords.swing.EDTContention")
+   @Label("EDT Contention Risk")
+   @Category({ "Swing", "EDT" })
+   @Description("Another thread holding what the EDT needs, found while analyzing a hang")
+   @StackTrace(false)
+   static final class Contention extends Event {
+      @Label("Dispatch ID")
+      long dispatchID;
+
+      @Label("Risk")
+      String risk;
+
+      @Label("Thread Name")
+      String threadName;
+
+      @Label("Finding")
+      String finding;
+   }
+}
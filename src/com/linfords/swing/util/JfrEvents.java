@@ -0,0 +1,69 @@
+package com.linfords.swing.util;
+
+import java.awt.AWTEvent;
+
+/**
+ * Emits what the monitors learn as Java Flight Recorder events as well as text, so they
+ * can be correlated with GC, safepoints and I/O in a recording. JFR buffers events per
+ * thread in binary form, far more cheaply than the text path.
+ * <p>
+ * The events are defined in {@link JfrEventTypes}, which is only loaded when the JVM has
+ * {@code jdk.jfr}; on older JVMs every method here does nothing. Events are recorded only
+ * while a recording has them enabled, and dispatches only past their threshold (20 ms
+ * unless the recording's settings say otherwise):
+ * <ul>
+ * <li>{@code com.linfords.swing.EDTDispatch}: every dispatch, with its event type,
+ * source and queue wait.</li>
+ * <li>{@code com.linfords.swing.EDTHang}: each reported hang, with its hangID and crux
+ * frame.</li>
+ * <li>{@code com.linfords.swing.EDTContention}: each contention risk found during a
+ * hang.</li>
+ * </ul>
+ */
+final class JfrEvents {
+   private final static boolean AVAILABLE = isAvailable();
+
+   private static boolean isAvailable() {
+      try {
+         Class.forName("jdk.jfr.Event");
+         return JfrEventTypes.register();
+      }
+      catch (Throwable t) {
+         // No jdk.jfr module, or a JVM built without JFR.
+         return false;
+      }
+   }
+
+   private JfrEvents() {
+   }
+
+   /**
+    * EDT. Call just before the event is dispatched.
+    *
+    * @return the JFR event to pass to {@link #dispatchEnded}, or null if it isn't being
+    *         recorded
+    */
+   static Object dispatchStarted() {
+      return AVAILABLE ? JfrEventTypes.dispatchStarted() : null;
+   }
+
+   static void dispatchEnded(final Object jfrEvent, final long dispatchID, final AWTEvent event,
+         final long queueWaitNanos) {
+      if (jfrEvent != null) {
+         JfrEventTypes.dispatchEnded(jfrEvent, dispatchID, event, queueWaitNanos);
+      }
+   }
+
+   static void hang(final long dispatchID, final int hangID, final long durationNanos, final AWTEvent event,
+         final String cruxFrame) {
+      if (AVAILABLE) {
+         JfrEventTypes.hang(dispatchID, hangID, durationNanos, event, cruxFrame);
+      }
+   }
+
+   static void contention(final long dispatchID, final String risk, final String threadName, final String finding) {
+      if (AVAILABLE) {
+         JfrEventTypes.contention(dispatchID, risk, threadName, finding);
+      }
+   }
+}
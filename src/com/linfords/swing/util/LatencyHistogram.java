@@ -0,0 +1,140 @@
+package com.linfords.swing.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, normally nanoseconds.
+ * <p>
+ * Buckets are log-linear: every power of two is split into 8 equal sub-buckets, so a
+ * reported percentile is within 12.5% of the true value over the whole {@code long}
+ * range. Recording is two or three atomic adds and never allocates, which makes it
+ * cheap enough to leave on all the time.
+ */
+final class LatencyHistogram {
+   private static final int SUB_BUCKET_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+   /** Values below this get a bucket each. */
+   private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+   private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+   private final AtomicLong count = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+   private final AtomicLong max = new AtomicLong();
+
+   void record(long value) {
+      if (value < 0) {
+         value = 0;
+      }
+      counts.incrementAndGet(bucketOf(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+
+      long m = max.get();
+      while ((value > m) && !max.compareAndSet(m, value)) {
+         m = max.get();
+      }
+   }
+
+   long count() {
+      return count.get();
+   }
+
+   long max() {
+      return max.get();
+   }
+
+   long mean() {
+      final long n = count.get();
+      return (n == 0) ? 0 : sum.get() / n;
+   }
+
+   /**
+    * @param percentile
+    *        0 to 100
+    * @return the upper bound of the bucket holding that percentile, or 0 if nothing
+    *         has been recorded
+    */
+   long percentile(final double percentile) {
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         total += counts.get(i);
+      }
+      if (total == 0) {
+         return 0;
+      }
+
+      final long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         seen += counts.get(i);
+         if (seen >= rank) {
+            return Math.min(max.get(), upperBoundOf(i));
+         }
+      }
+      return max.get();
+   }
+
+   /**
+    * Like {@link #percentile} for several percentiles at once, in one pass.
+    *
+    * @param percentiles
+    *        0 to 100, ascending
+    */
+   long[] percentiles(final double[] percentiles) {
+      final long[] snapshot = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         snapshot[i] = counts.get(i);
+         total += snapshot[i];
+      }
+      final long[] values = new long[percentiles.length];
+      if (total == 0) {
+         return values;
+      }
+
+      final long m = max.get();
+      long seen = 0;
+      int bucket = -1;
+      for (int p = 0; p < percentiles.length; p++) {
+         final long rank = Math.max(1, (long) Math.ceil(total * percentiles[p] / 100));
+         while ((seen < rank) && (bucket < BUCKET_COUNT - 1)) {
+            seen += snapshot[++bucket];
+         }
+         values[p] = (seen >= rank) ? Math.min(m, upperBoundOf(bucket)) : m;
+      }
+      return values;
+   }
+
+   /** Not atomic with respect to concurrent {@link #record}s; good enough for a reset. */
+   void reset() {
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         counts.set(i, 0);
+      }
+      count.set(0);
+      sum.set(0);
+      max.set(0);
+   }
+
+   static int bucketOf(final long value) {
+      if (value < LINEAR_LIMIT) {
+         return (int) value;
+      }
+      final int msb = 63 - Long.numberOfLeadingZeros(value);
+      final int shift = msb - SUB_BUCKET_BITS;
+      return ((msb - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+   }
+
+   static long upperBoundOf(final int bucket) {
+      if (bucket < LINEAR_LIMIT) {
+         return bucket;
+      }
+      final int msb = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+      final int shift = msb - SUB_BUCKET_BITS;
+      final long lower = ((long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1)))) << shift;
+      return lower + (1L << shift) - 1;
+   }
+}
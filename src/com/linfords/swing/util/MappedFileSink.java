@@ -0,0 +1,177 @@
+package com.linfords.swing.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+
+/**
+ * {@link AsyncPrinter.Sink} that appends to pre-allocated, memory-mapped segment files.
+ * <p>
+ * Each segment is mapped once, at its full size, when it is opened. After that a write
+ * is nothing more than a copy into the mapping; the OS writes the pages back on its own
+ * schedule. Because the pages belong to the OS and not to the JVM, a hang report that
+ * has been handed to this sink survives the JVM being killed a moment later.
+ * <p>
+ * Segments are named {@code <baseName>.<number>.log}. When the current segment is full
+ * a new one is started, and only the newest {@code maxSegments} are kept. The unused
+ * tail of a segment is zero filled; it is truncated away when the segment is closed
+ * normally.
+ */
+public class MappedFileSink implements AsyncPrinter.Sink {
+   private final static String SUFFIX = ".log";
+
+   private final File directory;
+   private final String baseName;
+   private final int segmentSize;
+   private final int maxSegments;
+
+   /** Oldest first. Includes the current segment. */
+   private final Deque<File> segments = new ArrayDeque<File>();
+
+   private int nextSegmentNumber = 0;
+   private RandomAccessFile currentFile = null;
+   private MappedByteBuffer currentMap = null;
+
+   /**
+    * @param directory
+    *        where segments are written. Created if it doesn't exist.
+    * @param baseName
+    *        file name prefix of every segment
+    * @param segmentSize
+    *        size in bytes of each segment file
+    * @param maxSegments
+    *        number of segments kept, including the one being written
+    */
+   public MappedFileSink(final File directory, final String baseName, final int segmentSize,
+         final int maxSegments) throws IOException {
+      if (segmentSize <= 0) {
+         throw new IllegalArgumentException("segmentSize(" + segmentSize + ") must be positive");
+      }
+      if (maxSegments <= 0) {
+         throw new IllegalArgumentException("maxSegments(" + maxSegments + ") must be positive");
+      }
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+         throw new IOException("Unable to create directory " + directory);
+      }
+
+      this.directory = directory;
+      this.baseName = baseName;
+      this.segmentSize = segmentSize;
+      this.maxSegments = maxSegments;
+
+      adoptExistingSegments();
+      openNextSegment();
+   }
+
+   @Override
+   public void write(final ByteBuffer rendered) throws IOException {
+      while (rendered.hasRemaining()) {
+         if (!currentMap.hasRemaining()) {
+            openNextSegment();
+         }
+
+         int chunk = Math.min(rendered.remaining(), currentMap.remaining());
+         int limit = rendered.limit();
+         rendered.limit(rendered.position() + chunk);
+         currentMap.put(rendered);
+         rendered.limit(limit);
+      }
+   }
+
+   @Override
+   public void close() throws IOException {
+      closeCurrentSegment();
+   }
+
+   /**
+    * Continues numbering after segments left by a previous run, and counts them
+    * against {@code maxSegments}.
+    */
+   private void adoptExistingSegments() {
+      File[] existing = directory.listFiles(new FileFilter() {
+         @Override
+         public boolean accept(File f) {
+            return segmentNumber(f) >= 0;
+         }
+      });
+      if (existing == null) {
+         return;
+      }
+
+      Arrays.sort(existing, new Comparator<File>() {
+         @Override
+         public int compare(File f1, File f2) {
+            int n1 = segmentNumber(f1);
+            int n2 = segmentNumber(f2);
+            return (n1 < n2) ? -1 : ((n1 == n2) ? 0 : 1);
+         }
+      });
+
+      for (File f : existing) {
+         segments.addLast(f);
+         nextSegmentNumber = segmentNumber(f) + 1;
+      }
+   }
+
+   /** @return the segment number encoded in the file name, or -1 if it isn't one of ours. */
+   private int segmentNumber(final File f) {
+      String name = f.getName();
+      String prefix = baseName + ".";
+      if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+         return -1;
+      }
+      try {
+         return Integer.parseInt(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+      }
+      catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private void openNextSegment() throws IOException {
+      closeCurrentSegment();
+
+      File f = new File(directory, String.format("%s.%06d%s", baseName, nextSegmentNumber++, SUFFIX));
+      segments.addLast(f);
+      while (segments.size() > maxSegments) {
+         File oldest = segments.removeFirst();
+         if (oldest.exists() && !oldest.delete()) {
+            System.err.println(MappedFileSink.class.getSimpleName() + " could not delete " + oldest);
+         }
+      }
+
+      currentFile = new RandomAccessFile(f, "rw");
+      // Mapping past the end of the file grows it, so this also pre-allocates.
+      currentMap = currentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+   }
+
+   private void closeCurrentSegment() throws IOException {
+      if (currentFile == null) {
+         return;
+      }
+
+      int used = currentMap.position();
+      currentMap.force();
+      currentMap = null;
+      try {
+         // Not every platform allows truncating a file that is still mapped. The zero
+         // filled tail is harmless if it stays.
+         currentFile.getChannel().truncate(used);
+      }
+      catch (IOException e) {
+         // ignored, see above
+      }
+      finally {
+         currentFile.close();
+         currentFile = null;
+      }
+   }
+}
@@ -0,0 +1,227 @@
+package com.linfords.swing.util;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free, multi-producer/single-consumer ring buffer.
+ * <p>
+ * Producers claim a slot with a single CAS on {@code tail} and publish it by advancing
+ * that slot's sequence number. There are no locks and no per-element allocation, which
+ * is the point: the timer thread, class-loader observers and application threads may
+ * all be hammering the {@link AsyncPrinter} at the same moment during a hang storm.
+ * <p>
+ * Only one thread may call {@link #take()}, the timed {@link #poll(long, TimeUnit)} or
+ * {@link #drainTo}. The consumer parks when the buffer is empty and the next successful
+ * {@link #offer} wakes it. {@link #poll()} claims its slot with a CAS, so a producer may
+ * also use it to discard the oldest element when the buffer is full.
+ * <p>
+ * Based on Dmitry Vyukov's bounded MPMC queue.
+ */
+final class MpscRingBuffer<E> {
+   private final int capacity;
+   private final int mask;
+   private final AtomicReferenceArray<E> elements;
+
+   /**
+    * Per-slot sequence. A slot at position {@code pos} is free for a producer when its
+    * sequence equals {@code pos}, and holds a published element when it equals
+    * {@code pos + 1}.
+    */
+   private final AtomicLongArray sequences;
+
+   /** Next position to be claimed by a producer. */
+   private final AtomicLong tail = new AtomicLong();
+
+   /** Next position to be read. */
+   private final AtomicLong head = new AtomicLong();
+
+   private volatile Thread parkedConsumer = null;
+
+   /**
+    * @param requestedCapacity
+    *        rounded up to the next power of two
+    */
+   MpscRingBuffer(int requestedCapacity) {
+      if (requestedCapacity < 2) {
+         throw new IllegalArgumentException("capacity(" + requestedCapacity + ") must be at least 2");
+      }
+      int c = Integer.highestOneBit(requestedCapacity - 1) << 1;
+      this.capacity = c;
+      this.mask = c - 1;
+      this.elements = new AtomicReferenceArray<E>(c);
+      this.sequences = new AtomicLongArray(c);
+      for (int i = 0; i < c; i++) {
+         sequences.set(i, i);
+      }
+   }
+
+   int capacity() {
+      return capacity;
+   }
+
+   /**
+    * Approximate number of elements. Exact only when producers and consumer are quiet.
+    */
+   int size() {
+      long size = tail.get() - head.get();
+      if (size < 0) {
+         return 0;
+      }
+      return (size > capacity) ? capacity : (int) size;
+   }
+
+   boolean isEmpty() {
+      return size() == 0;
+   }
+
+   /**
+    * Appends {@code e} if there is room. Safe for any number of threads.
+    *
+    * @return false if the buffer is full
+    */
+   boolean offer(E e) {
+      if (e == null) {
+         throw new NullPointerException();
+      }
+
+      long pos = tail.get();
+      for (;;) {
+         int index = (int) pos & mask;
+         long dif = sequences.get(index) - pos;
+         if (dif == 0) {
+            if (tail.compareAndSet(pos, pos + 1)) {
+               elements.lazySet(index, e);
+               // Volatile write publishes the element to the consumer.
+               sequences.set(index, pos + 1);
+               Thread consumer = parkedConsumer;
+               if (consumer != null) {
+                  LockSupport.unpark(consumer);
+               }
+               return true;
+            }
+            pos = tail.get();
+         }
+         else if (dif < 0) {
+            // The consumer hasn't freed this slot yet: full.
+            return false;
+         }
+         else {
+            // Another producer got here first.
+            pos = tail.get();
+         }
+      }
+   }
+
+   /**
+    * Removes the oldest element. Normally called by the consumer, but also safe for a
+    * producer shedding load, see {@link AsyncPrinter.OverflowPolicy#DROP_OLDEST}.
+    *
+    * @return the oldest published element, or null if there is none
+    */
+   E poll() {
+      long pos = head.get();
+      for (;;) {
+         int index = (int) pos & mask;
+         long dif = sequences.get(index) - (pos + 1);
+         if (dif == 0) {
+            if (head.compareAndSet(pos, pos + 1)) {
+               E e = elements.get(index);
+               elements.lazySet(index, null);
+               // Volatile write hands the slot back to the producers.
+               sequences.set(index, pos + capacity);
+               return e;
+            }
+            pos = head.get();
+         }
+         else if (dif < 0) {
+            // Empty, or the producer that claimed this slot hasn't published yet.
+            return null;
+         }
+         else {
+            // Somebody else removed it first.
+            pos = head.get();
+         }
+      }
+   }
+
+   /**
+    * Consumer only. Blocks until an element is available.
+    */
+   E take() throws InterruptedException {
+      E e = poll();
+      while (e == null) {
+         parkedConsumer = Thread.currentThread();
+         try {
+            // Re-check after advertising that we're about to park, otherwise an offer
+            // that landed in between would not wake us.
+            e = poll();
+            if (e != null) {
+               break;
+            }
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+               throw new InterruptedException();
+            }
+         }
+         finally {
+            parkedConsumer = null;
+         }
+         e = poll();
+      }
+      return e;
+   }
+
+   /**
+    * Consumer only. Blocks for at most {@code timeout}.
+    *
+    * @return the oldest element, or null if none arrived in time
+    */
+   E poll(long timeout, TimeUnit unit) throws InterruptedException {
+      E e = poll();
+      if (e != null) {
+         return e;
+      }
+
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+      parkedConsumer = Thread.currentThread();
+      try {
+         for (;;) {
+            e = poll();
+            if (e != null) {
+               return e;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+               return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+               throw new InterruptedException();
+            }
+         }
+      }
+      finally {
+         parkedConsumer = null;
+      }
+   }
+
+   /**
+    * Consumer only. Moves every element currently available into {@code target}.
+    *
+    * @return the number of elements moved
+    */
+   int drainTo(Collection<? super E> target) {
+      int count = 0;
+      E e;
+      while ((e = poll()) != null) {
+         target.add(e);
+         count++;
+      }
+      return count;
+   }
+}
@@ -35,6 +35,8 @@ public class Profiler {
    private static boolean logEndDisabled = false;
 
    public static void clearSummary() {
+      // The journal keeps the totals the text report is about to lose.
+      journalSummary();
       summaryMap.clear();
       profiledPeriodStartMillis = System.currentTimeMillis();
       profiledPeriodStartNanos = System.nanoTime();
@@ -505,6 +507,7 @@ public class Profiler {
 //   }
 
    public static String summaryToString(Comparator<Summary> summaryComparator) {
+      journalSummary();
       StringBuffer sb = new StringBuffer();
 
       long currentTimeMillis = System.currentTimeMillis();
@@ -526,6 +529,24 @@ public class Profiler {
       return sb.toString();
    }
 
+   /**
+    * Writes every summary to the {@link EventJournal}, if one is open. Called whenever the
+    * summary is reported or cleared.
+    */
+   public static void journalSummary() {
+      if (!EventJournal.isEnabled()) {
+         return;
+      }
+      synchronized (summaryMap) {
+         for (Summary summary : summaryMap.values()) {
+            synchronized (summary) {
+               EventJournal.profilerSummary(summary.key, summary.invoked, summary.fastest, summary.slowest,
+                     summary.totalNanos);
+            }
+         }
+      }
+   }
+
    public static class Summary {
       final String key;
       long invoked = 0;
@@ -7,7 +7,7 @@ public class ThreadProfileSynopsis<K, V> extends TreeMap<Integer, ThreadProfileS
    private static final long serialVersionUID = 1L;
 
    StackTraceNode getNullSafe(final Integer key, final StackTraceElement frame) {
-      return getNullSafe(key, frame, Util.isPerformanceRisk(frame));
+      return getNullSafe(key, frame, ClassClassifier.GLOBAL.isPerformanceRisk(frame));
    }
 
    private StackTraceNode getNullSafe(final Integer key, final StackTraceElement frame,
@@ -69,14 +69,14 @@ public class ThreadProfileSynopsis<K, V> extends TreeMap<Integer, ThreadProfileS
       private StackTraceNode(final int height, final StackTraceElement frame) {
          this.height = height;
          this.frame = frame;
-         this.dontRunThisCodeOnTheEDT = Util.isPerformanceRisk(frame);
+         this.dontRunThisCodeOnTheEDT = ClassClassifier.GLOBAL.isPerformanceRisk(frame);
       }
 
       private StackTraceNode(final int height, final StackTraceElement frame, final boolean suspectCode) {
          this.height = height;
          this.frame = frame;
          this.dontRunThisCodeOnTheEDT = suspectCode;
-         this.isOurStuff = Util.isEzeniaCode(frame);
+         this.isOurStuff = ClassClassifier.GLOBAL.isOurCode(frame);
       }
 
       public String toString() {
@@ -0,0 +1,291 @@
+package com.linfords.swing.util;
+
+import java.lang.Thread.State;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes the bulk thread dumps the monitors need and shares them. A dump of every thread
+ * with its locked monitors and synchronizers stops the world at a safepoint for as long
+ * as it takes to walk every stack, and on HotSpot finding the locked synchronizers
+ * walks the heap as well, so {@link DispatchAnalyzer}'s risk checks use the same one
+ * rather than each taking their own.
+ * <p>
+ * At most one dump is taken per tick, 50 ms unless {@link #setTick changed}: a
+ * {@link #snapshot()} requested within a tick of the last one gets that one. Deadlocks
+ * are found by following lock owners within the snapshot, which needs no further
+ * safepoint. Consumers that want a snapshot periodically {@link #subscribe}.
+ * <p>
+ * Checking for deadlocks alone doesn't need a dump: {@link #findDeadlocked()} answers
+ * from a snapshot if one was taken within the tick, and otherwise asks the JVM, which
+ * looks only at what blocked threads wait for. {@link DeadlockDetector} and
+ * {@link Util#checkForDeadlock} use that.
+ * <p>
+ * The stack depth can be limited with {@link #setMaxDepth}, which shortens the pause
+ * on JVMs with many deep threads.
+ */
+public final class ThreadSnapshotService {
+   private static final ThreadSnapshotService INSTANCE = new ThreadSnapshotService(
+         ManagementFactory.getThreadMXBean());
+
+   public static ThreadSnapshotService defaultInstance() {
+      return INSTANCE;
+   }
+
+   /** Receives snapshots at the period it subscribed with. */
+   public static interface Listener {
+      void snapshotTaken(Snapshot snapshot);
+   }
+
+   private final ThreadMXBean threadBean;
+   private final boolean lockedMonitors;
+   private final boolean lockedSynchronizers;
+
+   private volatile long tickNanos = Util.NANO_PER_MILLI * 50;
+   private volatile int maxDepth = Integer.MAX_VALUE;
+
+   private Snapshot latest = null;
+
+   private final Map<Listener, TimerTask> subscriptions = new HashMap<Listener, TimerTask>();
+   private Timer timer = null;
+
+   private final AtomicLong taken = new AtomicLong();
+   private final AtomicLong shared = new AtomicLong();
+   private final AtomicLong takingNanos = new AtomicLong();
+
+   private ThreadSnapshotService(final ThreadMXBean threadBean) {
+      this.threadBean = threadBean;
+      this.lockedMonitors = threadBean.isObjectMonitorUsageSupported();
+      this.lockedSynchronizers = threadBean.isSynchronizerUsageSupported();
+   }
+
+   /**
+    * A snapshot no more than a tick old, sharing the previous one if it is that recent.
+    */
+   public Snapshot snapshot() {
+      return snapshot(tickNanos);
+   }
+
+   /**
+    * A snapshot no older than {@code maxAgeNanos}, or than a tick if that is longer.
+    */
+   public synchronized Snapshot snapshot(final long maxAgeNanos) {
+      final long now = System.nanoTime();
+      if ((latest != null) && (now - latest.takenNanos < Math.max(maxAgeNanos, tickNanos))) {
+         shared.incrementAndGet();
+         return latest;
+      }
+      final int depth = maxDepth;
+      final ThreadInfo[] infos = dump(depth);
+      final long end = System.nanoTime();
+      taken.incrementAndGet();
+      takingNanos.addAndGet(end - now);
+      latest = new Snapshot(end, infos, depth);
+      return latest;
+   }
+
+   private ThreadInfo[] dump(final int depth) {
+      if (depth != Integer.MAX_VALUE) {
+         return threadBean.dumpAllThreads(lockedMonitors, lockedSynchronizers, depth);
+      }
+      return threadBean.dumpAllThreads(lockedMonitors, lockedSynchronizers);
+   }
+
+   /**
+    * Threads waiting to lock a monitor or synchronizer in a cycle of owners, as
+    * {@link Snapshot#getDeadlocked()}, without taking a dump. Only the threads in a
+    * deadlock, if there is one, are dumped.
+    */
+   public List<ThreadInfo> findDeadlocked() {
+      synchronized (this) {
+         if ((latest != null) && (System.nanoTime() - latest.takenNanos < tickNanos)) {
+            shared.incrementAndGet();
+            return latest.getDeadlocked();
+         }
+      }
+      final long[] ids = lockedSynchronizers ? threadBean.findDeadlockedThreads()
+            : threadBean.findMonitorDeadlockedThreads();
+      if (ids == null) {
+         return Collections.<ThreadInfo> emptyList();
+      }
+      final List<ThreadInfo> found = new ArrayList<ThreadInfo>(ids.length);
+      for (ThreadInfo info : threadBean.getThreadInfo(ids, lockedMonitors, lockedSynchronizers)) {
+         if (info != null) {
+            found.add(info);
+         }
+      }
+      return Collections.unmodifiableList(found);
+   }
+
+   /**
+    * Delivers a snapshot to {@code listener} every {@code period}, on a shared timer
+    * thread, replacing any earlier subscription of the listener.
+    */
+   public synchronized void subscribe(final Listener listener, final long initialDelay, final long period,
+         final TimeUnit unit) {
+      unsubscribe(listener);
+      final TimerTask task = new TimerTask() {
+         @Override
+         public void run() {
+            listener.snapshotTaken(snapshot());
+         }
+      };
+      if (timer == null) {
+         timer = new Timer(ThreadSnapshotService.class.getSimpleName(), true);
+      }
+      timer.schedule(task, unit.toMillis(initialDelay), Math.max(1, unit.toMillis(period)));
+      subscriptions.put(listener, task);
+   }
+
+   public synchronized void unsubscribe(final Listener listener) {
+      final TimerTask task = subscriptions.remove(listener);
+      if (task != null) {
+         task.cancel();
+      }
+   }
+
+   /**
+    * The least time between two dumps. Consumers asking more often share a snapshot.
+    */
+   public void setTick(final long tick, final TimeUnit unit) {
+      if (tick < 0) {
+         throw new IllegalArgumentException("tick(" + tick + ") must not be negative");
+      }
+      tickNanos = unit.toNanos(tick);
+   }
+
+   /**
+    * @param maxDepth
+    *        frames to dump per thread, or {@code Integer.MAX_VALUE} for all of them
+    */
+   public void setMaxDepth(final int maxDepth) {
+      if (maxDepth < 0) {
+         throw new IllegalArgumentException("maxDepth(" + maxDepth + ") must not be negative");
+      }
+      this.maxDepth = maxDepth;
+   }
+
+   public int getMaxDepth() {
+      return maxDepth;
+   }
+
+   /** Dumps taken, each a safepoint. */
+   public long getSnapshotCount() {
+      return taken.get();
+   }
+
+   /** Requests answered with an earlier snapshot instead of a new dump. */
+   public long getSharedCount() {
+      return shared.get();
+   }
+
+   /** Time spent taking dumps, which the whole JVM spent stopped for most of. */
+   public long getSnapshotNanos() {
+      return takingNanos.get();
+   }
+
+   /**
+    * Every live thread at one instant.
+    */
+   public static final class Snapshot {
+      private final long takenNanos;
+      private final ThreadInfo[] infos;
+      private final int maxDepth;
+      private final Map<Long, ThreadInfo> byId;
+      private final List<ThreadInfo> deadlocked;
+
+      Snapshot(final long takenNanos, final ThreadInfo[] infos, final int maxDepth) {
+         this.takenNanos = takenNanos;
+         this.infos = infos;
+         this.maxDepth = maxDepth;
+         this.byId = new HashMap<Long, ThreadInfo>(infos.length * 2);
+         for (ThreadInfo info : infos) {
+            if (info != null) {
+               byId.put(info.getThreadId(), info);
+            }
+         }
+         this.deadlocked = findDeadlocked();
+      }
+
+      /** {@code System.nanoTime()} when the dump was finished. */
+      public long getTakenNanos() {
+         return takenNanos;
+      }
+
+      /** A copy; entries may be null for threads that died during the dump. */
+      public ThreadInfo[] getThreadInfos() {
+         return infos.clone();
+      }
+
+      /** @return the thread's info, or null if it wasn't alive */
+      public ThreadInfo get(final long threadId) {
+         return byId.get(threadId);
+      }
+
+      public int getMaxDepth() {
+         return maxDepth;
+      }
+
+      /**
+       * Threads waiting to lock a monitor or synchronizer in a cycle of owners, each
+       * waiting for the next. Empty if there is no deadlock.
+       */
+      public List<ThreadInfo> getDeadlocked() {
+         return deadlocked;
+      }
+
+      /**
+       * Every blocked thread waits for at most one owner, so the wait-for graph is a set
+       * of chains, and a deadlock is a chain that comes back on itself.
+       */
+      private List<ThreadInfo> findDeadlocked() {
+         List<ThreadInfo> found = null;
+         final Map<Long, Integer> visitedOnWalk = new HashMap<Long, Integer>();
+         int walk = 0;
+         for (ThreadInfo start : infos) {
+            if ((start == null) || visitedOnWalk.containsKey(start.getThreadId())) {
+               continue;
+            }
+            walk++;
+            ThreadInfo t = start;
+            while ((t != null) && !visitedOnWalk.containsKey(t.getThreadId())) {
+               visitedOnWalk.put(t.getThreadId(), walk);
+               t = waitsFor(t);
+            }
+            if ((t != null) && (visitedOnWalk.get(t.getThreadId()) == walk)) {
+               // This walk ran into itself: t is on a cycle.
+               if (found == null) {
+                  found = new ArrayList<ThreadInfo>();
+               }
+               final ThreadInfo first = t;
+               do {
+                  found.add(t);
+                  t = waitsFor(t);
+               }
+               while (t != first);
+            }
+         }
+         return (found == null) ? Collections.<ThreadInfo> emptyList() : Collections.unmodifiableList(found);
+      }
+
+      /** The thread {@code t} is waiting to lock something from, or null. */
+      private ThreadInfo waitsFor(final ThreadInfo t) {
+         final State state = t.getThreadState();
+         if ((state != State.BLOCKED) && (state != State.WAITING) && (state != State.TIMED_WAITING)) {
+            return null;
+         }
+         final long owner = t.getLockOwnerId();
+         return (owner == -1) ? null : byId.get(owner);
+      }
+   }
+}
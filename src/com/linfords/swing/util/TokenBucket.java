@@ -0,0 +1,36 @@
+package com.linfords.swing.util;
+
+/**
+ * Classic token bucket: allows {@code burst} items at once and {@code perSecond} items
+ * per second on average after that. Safe for any number of threads.
+ */
+final class TokenBucket {
+   private final double tokensPerNano;
+   private final double burst;
+
+   private double tokens;
+   private long lastRefillNanos = System.nanoTime();
+
+   TokenBucket(final double perSecond, final int burst) {
+      if (perSecond <= 0) {
+         throw new IllegalArgumentException("perSecond(" + perSecond + ") must be positive");
+      }
+      if (burst < 1) {
+         throw new IllegalArgumentException("burst(" + burst + ") must be at least 1");
+      }
+      this.tokensPerNano = perSecond / Util.NANOS_PER_SEC;
+      this.burst = burst;
+      this.tokens = burst;
+   }
+
+   synchronized boolean tryAcquire() {
+      final long now = System.nanoTime();
+      tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+      lastRefillNanos = now;
+      if (tokens < 1) {
+         return false;
+      }
+      tokens -= 1;
+      return true;
+   }
+}
@@ -2,11 +2,11 @@ package com.linfords.swing.util;
 
 import java.awt.EventQueue;
 import java.lang.management.LockInfo;
-import java.lang.management.ManagementFactory;
 import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
-import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
 
 public final class Util {
    /**
@@ -52,37 +52,100 @@ public final class Util {
             || className.startsWith("clientCommon") || className.startsWith("zenWhiteboard"));
    }
 
+   /**
+    * Code that shouldn't run on the EDT: a class name prefix, and which of its methods.
+    */
+   private final static RiskRule[] PERFORMANCE_RISKS = {
+         RiskRule.methods("javax.imageio.ImageIO", "<clinit>"),
+         //            RiskRule.anyMethod("javax.crypto"),
+         RiskRule.methods("javax.crypto.Cipher", "getInstance"),
+         RiskRule.methods("com.sun.crypto.provider.AESCipher", "<init>"),
+         RiskRule.anyMethod("com.sun.jna"),
+         RiskRule.anyMethod("com.rsa"),
+         RiskRule.methods("sun.misc.Unsafe", "park"),
+         RiskRule.methods("java.lang.Object", "wait"),
+         RiskRule.methods("java.io.FileInputStream", "readBytes"),
+         RiskRule.anyMethod("java.util.zip"),
+         RiskRule.anyMethod("java.util.jar"),
+         //            RiskRule.anyMethod("java.net"),
+         RiskRule.methods("java.net.Socket", "connect"),
+         RiskRule.matching("java.net.Socket", "(?i)[^r]*read.*"), // contain 'read' case insensitive
+         RiskRule.matching("java.net.Socket", "(?i)[^w]*write.*"), // contain 'write' case insensitive
+         RiskRule.methods("java.net.URLClassLoader", "access"),
+         //            RiskRule.anyMethod("java.security.AccessController"),
+         RiskRule.methods("sun.awt.datatransfer.SunClipboard", "getContents"),
+         RiskRule.anyMethod("org.apache.batik.bridge.DocumentJarClassLoader"),
+         RiskRule.methods("org.apache.batik.bridge.BridgeContext", "<init>"),
+         RiskRule.methods("org.apache.batik.svggen.SVGGraphics2D", "<init>"),
+         RiskRule.methods("org.apache.batik.dom.svg.SVGDOMImplementation", "createDocument", "clinit"),
+         RiskRule.anyMethod("com.ezenia.clientgateway.EzXMPPClient"),
+         RiskRule.methods("com.ezenia.smack.XMPPConnection", "initConnection"),
+         RiskRule.methods("com.ezenia.smack.PacketCollector", "nextResult") };
+
    public static boolean isPerformanceRisk(StackTraceElement stackTraceElement) {
       final String className = stackTraceElement.getClassName();
       final String methodName = stackTraceElement.getMethodName();
+      for (RiskRule rule : PERFORMANCE_RISKS) {
+         if (className.startsWith(rule.classPrefix) && rule.matchesMethod(methodName)) {
+            return true;
+         }
+      }
+      return false;
+   }
 
-      boolean suspect = (className.startsWith("javax.imageio.ImageIO") && methodName.equals("<clinit>"))
-            //            || className.startsWith("javax.crypto")
-            || (className.startsWith("javax.crypto.Cipher") && methodName.equals("getInstance"))
-            || (className.startsWith("com.sun.crypto.provider.AESCipher") && methodName.equals("<init>"))
-            || className.startsWith("com.sun.jna")
-            || className.startsWith("com.rsa")
-            || (className.startsWith("sun.misc.Unsafe") && methodName.equals("park"))
-            || (className.startsWith("java.lang.Object") && methodName.equals("wait"))
-            || (className.startsWith("java.io.FileInputStream") && methodName.equals("readBytes"))
-            || className.startsWith("java.util.zip")
-            || className.startsWith("java.util.jar")
-            //            || className.startsWith("java.net")
-            || (className.startsWith("java.net.Socket") && methodName.equals("connect"))
-            || (className.startsWith("java.net.Socket") && methodName.matches("(?i)[^r]*read.*")) // contain 'read' case insensitive
-            || (className.startsWith("java.net.Socket") && methodName.matches("(?i)[^w]*write.*")) // contain 'write' case insensitive
-            || (className.startsWith("java.net.URLClassLoader") && methodName.equals("access"))
-            //            || className.startsWith("java.security.AccessController")
-            || (className.startsWith("sun.awt.datatransfer.SunClipboard") && methodName.equals("getContents"))
-            || className.startsWith("org.apache.batik.bridge.DocumentJarClassLoader")
-            || (className.startsWith("org.apache.batik.bridge.BridgeContext") && methodName.equals("<init>"))
-            || (className.startsWith("org.apache.batik.svggen.SVGGraphics2D") && methodName.equals("<init>"))
-            || (className.startsWith("org.apache.batik.dom.svg.SVGDOMImplementation") && (methodName.equals("createDocument") || methodName.equals("clinit")))
-            || className.startsWith("com.ezenia.clientgateway.EzXMPPClient")
-            || (className.startsWith("com.ezenia.smack.XMPPConnection") && methodName.equals("initConnection"))
-            || (className.startsWith("com.ezenia.smack.PacketCollector") && methodName.equals("nextResult"));
-
-      return suspect;
+   /**
+    * Whether some method of the class could be a performance risk, which needs only the
+    * class name. {@link ClassClassifier} caches this per class so that
+    * {@link #isPerformanceRisk} is only asked about frames where the method matters.
+    */
+   static boolean mayBePerformanceRisk(final String className) {
+      for (RiskRule rule : PERFORMANCE_RISKS) {
+         if (className.startsWith(rule.classPrefix)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static final class RiskRule {
+      final String classPrefix;
+      /** Null for every method. */
+      final String[] methods;
+      /** Used instead of {@code methods} if not null. */
+      final Pattern methodPattern;
+
+      private RiskRule(final String classPrefix, final String[] methods, final Pattern methodPattern) {
+         this.classPrefix = classPrefix;
+         this.methods = methods;
+         this.methodPattern = methodPattern;
+      }
+
+      static RiskRule anyMethod(final String classPrefix) {
+         return new RiskRule(classPrefix, null, null);
+      }
+
+      static RiskRule methods(final String classPrefix, final String... methods) {
+         return new RiskRule(classPrefix, methods, null);
+      }
+
+      static RiskRule matching(final String classPrefix, final String methodRegex) {
+         return new RiskRule(classPrefix, null, Pattern.compile(methodRegex));
+      }
+
+      boolean matchesMethod(final String methodName) {
+         if (methodPattern != null) {
+            return methodPattern.matcher(methodName).matches();
+         }
+         if (methods == null) {
+            return true;
+         }
+         for (String m : methods) {
+            if (m.equals(methodName)) {
+               return true;
+            }
+         }
+         return false;
+      }
    }
 
    public static StringBuilder fullStackTrace(final ThreadInfo ti) {
@@ -172,22 +235,48 @@ public final class Util {
       return sb;
    }
 
+   /**
+    * A hash of everything {@link #fullStackTrace(ThreadInfo)} prints, so a repeated dump
+    * can be recognized without printing it. Never 0.
+    */
+   static long fullStackTraceHash(final ThreadInfo ti) {
+      long hash = DuplicateSuppressor.SEED;
+      hash = DuplicateSuppressor.mix(hash, ti.getThreadId());
+      hash = DuplicateSuppressor.mix(hash, ti.getThreadName().hashCode());
+      hash = DuplicateSuppressor.mix(hash, ti.getThreadState().ordinal());
+      hash = DuplicateSuppressor.mix(hash, String.valueOf(ti.getLockName()).hashCode());
+      hash = DuplicateSuppressor.mix(hash, ti.getLockOwnerId());
+      hash = DuplicateSuppressor.mix(hash, (ti.isSuspended() ? 1 : 0) | (ti.isInNative() ? 2 : 0));
+      for (StackTraceElement ste : ti.getStackTrace()) {
+         hash = DuplicateSuppressor.mix(hash, ste.hashCode());
+      }
+      for (MonitorInfo mi : ti.getLockedMonitors()) {
+         hash = DuplicateSuppressor.mix(hash, mi.getIdentityHashCode());
+         hash = DuplicateSuppressor.mix(hash, mi.getLockedStackDepth());
+      }
+      for (LockInfo li : ti.getLockedSynchronizers()) {
+         hash = DuplicateSuppressor.mix(hash, li.getIdentityHashCode());
+      }
+      return (hash == 0) ? 1 : hash;
+   }
+
+   /**
+    * Reports deadlocks, from a {@link ThreadSnapshotService} snapshot if one was just
+    * taken for another check, otherwise without a full thread dump.
+    */
    public static void checkForDeadlock(AsyncPrinter aout) {
-      ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
-      //threadBean.getThreadInfo(Thread.currentThread().getId(), Integer.MAX_VALUE).getStackTrace()
-      long[] threadIds = threadBean.findMonitorDeadlockedThreads();
-      if (threadIds == null) {
+      List<ThreadInfo> threadInfos = ThreadSnapshotService.defaultInstance().findDeadlocked();
+      if (threadInfos.isEmpty()) {
          return;
       }
 
       aout.add("deadlock detected involving the following threads:");
-      ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadIds, Integer.MAX_VALUE);
       for (ThreadInfo info : threadInfos) {
          aout.add("Thread #" + info.getThreadId() + " " + info.getThreadName() + " ("
                   + info.getThreadState() + ") waiting on object(" + info.getLockName()
                + ") held by thread ("
                   + info.getLockOwnerName() + ")");
-         aout.add(fullStackTrace(info));
+         aout.add(info); // rendered later, by the printer
       }
    }
 
@@ -216,21 +305,21 @@ public final class Util {
    }
 
    public static void printThreadSummary(ThreadInfo info, AsyncPrinter aout) {
-      aout.add("getThreadName: " + info.getThreadName());
-      aout.add("getThreadId: " + info.getThreadId());
-      aout.add("getThreadState: " + info.getThreadState());
-      aout.add("isNative: " + info.isInNative());
+      aout.addMessage("getThreadName: {}", info.getThreadName());
+      aout.addMessage("getThreadId: {}", info.getThreadId());
+      aout.addMessage("getThreadState: {}", info.getThreadState());
+      aout.addMessage("isNative: {}", info.isInNative());
 
-      aout.add("getLockInfo: " + info.getLockInfo());
-      aout.add("getLockName: " + info.getLockName());
-      aout.add("getLockOwnerId: " + info.getLockOwnerId());
-      aout.add("getLockOwnerName: " + info.getLockOwnerName());
+      aout.addMessage("getLockInfo: {}", info.getLockInfo());
+      aout.addMessage("getLockName: {}", info.getLockName());
+      aout.addMessage("getLockOwnerId: {}", info.getLockOwnerId());
+      aout.addMessage("getLockOwnerName: {}", info.getLockOwnerName());
 
-      aout.add("getBlockedCount: " + info.getBlockedCount());
-      aout.add("getBlockedTime: " + info.getBlockedTime());
+      aout.addMessage("getBlockedCount: {}", info.getBlockedCount());
+      aout.addMessage("getBlockedTime: {}", info.getBlockedTime());
 
-      aout.add("getLockedMonitors: " + Arrays.asList(info.getLockedMonitors()));
-      aout.add("getLockedSynchronizers: " + Arrays.asList(info.getLockedSynchronizers()));
+      aout.addMessage("getLockedMonitors: {}", Arrays.asList(info.getLockedMonitors()));
+      aout.addMessage("getLockedSynchronizers: {}", Arrays.asList(info.getLockedSynchronizers()));
    }
 
 }
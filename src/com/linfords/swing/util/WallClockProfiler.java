@@ -0,0 +1,603 @@
+package com.linfords.swing.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Samples the stacks of every thread, or of the threads whose names match a pattern,
+ * at a fixed interval, whatever they are doing. Where {@link DispatchAnalyzer} follows
+ * the EDT through one overdue dispatch, this shows where the background threads spend
+ * their time: network readers, decoders, {@code SwingWorker}s, and whatever they wait
+ * for.
+ * <p>
+ * Samples are aggregated into a calling-context tree per thread group, where a group is
+ * the thread name with its digits replaced by {@code #}, so that
+ * {@code pool-3-thread-7} and {@code pool-3-thread-8} count together. Frames are
+ * methods, as {@link FrameDictionary} IDs of frames without a line number, so samples
+ * on different lines of a method count together. The trees are plain int and long
+ * arrays, so the profile stays compact however long it runs, and a sample that revisits
+ * known code only increments counters. Stacks are cut to
+ * {@link #setMaxDepth maxDepth} frames from the top; a cut stack hangs under a
+ * {@code [truncated]} frame.
+ * <p>
+ * The profile is exported as folded stacks, one {@code group;outer;...;inner count} line
+ * per stack, as read by Brendan Gregg's {@code flamegraph.pl} and most other flame graph
+ * tools, or as a self-contained HTML flame graph.
+ * <p>
+ * Each sample stops the JVM at a safepoint while the stacks are taken. The sampler
+ * keeps the time spent sampling below {@link #setOverheadBudget a fraction} of wall
+ * time, 2% by default, by sampling less often when it would be exceeded. Unused budget
+ * is saved up to {@code MAX_SAVED_NANOS}, so an occasional slow sample doesn't stall
+ * sampling. A sample is taken only once the budget saved covers what the previous one
+ * cost, and nothing is saved at the start, so the overhead stays within the budget
+ * except for the first sample, whose cost can't be known until it has been taken.
+ *
+ * <pre>
+ * WallClockProfiler p = new WallClockProfiler();
+ * p.setThreadNamePattern(Pattern.compile(&quot;pool-.*|Network.*&quot;));
+ * p.start();
+ * ...
+ * p.stop();
+ * p.writeFlameGraph(new File(&quot;stall.html&quot;));
+ * </pre>
+ */
+public final class WallClockProfiler {
+   private static final Logger log = Logger.getLogger(WallClockProfiler.class.getName());
+
+   private final static ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+   private final static StackTraceElement TRUNCATED = new StackTraceElement("[truncated]", "", null, -1);
+
+   /** Further groups are counted as one, so threads named by sequence can't grow the map. */
+   private final static int MAX_GROUPS = 256;
+   private final static String OTHER_GROUP = "(other)";
+
+   /** The most sampling time that can be saved up while within budget. */
+   private final static long MAX_SAVED_NANOS = Util.NANO_PER_MILLI * 200;
+
+   private volatile long intervalNanos = Util.NANO_PER_MILLI * 10;
+   private volatile int maxDepth = 128;
+   private volatile double overheadBudget = 0.02;
+   private volatile Pattern threadNamePattern = null;
+
+   /** Thread name to group, so the digits of a known name aren't replaced again. */
+   private final Map<String, String> groupNames = new HashMap<String, String>();
+   private final Map<String, CallTree> trees = new HashMap<String, CallTree>();
+
+   private long samples = 0;
+   private long samplingNanos = 0;
+   private long startedNanos = 0;
+   private long profiledNanos = 0;
+
+   private Sampler sampler = null;
+
+   public WallClockProfiler() {
+   }
+
+   /**
+    * How often to sample while within the overhead budget. 10 ms by default.
+    */
+   public void setInterval(final long interval, final TimeUnit unit) {
+      if (interval <= 0) {
+         throw new IllegalArgumentException("interval(" + interval + ") must be positive");
+      }
+      intervalNanos = unit.toNanos(interval);
+   }
+
+   /**
+    * Frames kept per stack, counted from the top. 128 by default. Capped at
+    * {@code Integer.MAX_VALUE - 1}, since each sample asks for one frame more.
+    */
+   public void setMaxDepth(final int maxDepth) {
+      if (maxDepth <= 0) {
+         throw new IllegalArgumentException("maxDepth(" + maxDepth + ") must be positive");
+      }
+      this.maxDepth = Math.min(maxDepth, Integer.MAX_VALUE - 1);
+   }
+
+   /**
+    * @param fractionOfWallTime
+    *        how much of the time the sampler may spend sampling, e.g. 0.02 for 2%
+    */
+   public void setOverheadBudget(final double fractionOfWallTime) {
+      if ((fractionOfWallTime <= 0) || (fractionOfWallTime > 1)) {
+         throw new IllegalArgumentException("fractionOfWallTime(" + fractionOfWallTime + ") must be in (0, 1]");
+      }
+      overheadBudget = fractionOfWallTime;
+   }
+
+   /**
+    * Samples only threads whose whole name matches, or every thread if null. Only the
+    * matching threads are dumped, which makes each sample cheaper.
+    */
+   public void setThreadNamePattern(final Pattern pattern) {
+      threadNamePattern = pattern;
+   }
+
+   public synchronized void start() {
+      if (sampler != null) {
+         return;
+      }
+      startedNanos = System.nanoTime();
+      sampler = new Sampler();
+      sampler.start();
+   }
+
+   public void stop() {
+      final Sampler s;
+      synchronized (this) {
+         s = sampler;
+         if (s == null) {
+            return;
+         }
+         sampler = null;
+         profiledNanos += System.nanoTime() - startedNanos;
+      }
+      s.stopped = true;
+      LockSupport.unpark(s);
+      try {
+         s.join();
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   public synchronized boolean isRunning() {
+      return sampler != null;
+   }
+
+   /** Discards the profile so far. */
+   public synchronized void reset() {
+      trees.clear();
+      groupNames.clear();
+      samples = 0;
+      samplingNanos = 0;
+      profiledNanos = 0;
+      startedNanos = System.nanoTime();
+   }
+
+   /** Times the threads were sampled; each takes one safepoint. */
+   public synchronized long getSampleCount() {
+      return samples;
+   }
+
+   /** Wall time spent sampling. */
+   public synchronized long getSamplingNanos() {
+      return samplingNanos;
+   }
+
+   /** Wall time spent sampling, as a fraction of the time profiled. */
+   public synchronized double getOverhead() {
+      final long profiled = profiledNanos + ((sampler != null) ? System.nanoTime() - startedNanos : 0);
+      return (profiled <= 0) ? 0 : (double) samplingNanos / profiled;
+   }
+
+   // ////////////////////////////////////////////////////////////////
+
+   private class Sampler extends Thread {
+      volatile boolean stopped = false;
+
+      /** Reused between samples for the interned stack. */
+      private int[] ids = new int[0];
+
+      /** Frame ID to the ID of its method's line-less frame, or -1 if not yet known. */
+      private int[] methodIds = new int[0];
+
+      private double savedNanos = 0;
+
+      Sampler() {
+         super("Wall Clock Profiler");
+         setDaemon(true);
+      }
+
+      @Override
+      public void run() {
+         long lastRefillNanos = System.nanoTime();
+         long next = lastRefillNanos;
+         // What the next sample is expected to cost: what the last one did.
+         long expectedNanos = 0;
+         while (!stopped) {
+            long wait;
+            while (!stopped && ((wait = next - System.nanoTime()) > 0)) {
+               LockSupport.parkNanos(this, wait);
+            }
+            final long start = System.nanoTime();
+            final double budget = overheadBudget;
+            savedNanos = Math.min(MAX_SAVED_NANOS, savedNanos + (start - lastRefillNanos) * budget);
+            lastRefillNanos = start;
+            final long due = Math.min(expectedNanos, MAX_SAVED_NANOS);
+            if (savedNanos < due) {
+               // Paid for before it is taken, so the budget holds whenever sampling stops.
+               next = start + (long) ((due - savedNanos) / budget);
+               continue;
+            }
+            try {
+               sample();
+            }
+            catch (Exception e) {
+               log.log(Level.WARNING, "Unhandled error while sampling threads", e);
+            }
+            final long work = System.nanoTime() - start;
+            synchronized (WallClockProfiler.this) {
+               samplingNanos += work;
+            }
+            savedNanos -= work;
+            expectedNanos = work;
+            // Due a fixed interval after this sample started, if it can be paid for.
+            next = start + intervalNanos;
+         }
+      }
+
+      private void sample() {
+         final long[] threadIds = threadIds();
+         final int depth = maxDepth;
+         // One frame more than is kept tells a stack that was cut from one that fits.
+         final ThreadInfo[] infos = THREAD_BEAN.getThreadInfo(threadIds, depth + 1);
+         synchronized (WallClockProfiler.this) {
+            for (ThreadInfo info : infos) {
+               if ((info == null) || (info.getThreadId() == getId())) {
+                  continue;
+               }
+               final StackTraceElement[] stack = info.getStackTrace();
+               if (stack.length == 0) {
+                  continue;
+               }
+               final int length = Math.min(stack.length, depth);
+               if (ids.length < length) {
+                  ids = new int[Math.max(length, ids.length * 2)];
+               }
+               for (int i = 0; i < length; i++) {
+                  ids[i] = methodId(stack[i]);
+               }
+               treeFor(info.getThreadName()).add(ids, length, stack.length > depth);
+            }
+            samples++;
+         }
+      }
+
+      private int methodId(final StackTraceElement frame) {
+         final int frameId = FrameDictionary.GLOBAL.intern(frame);
+         if (frameId >= methodIds.length) {
+            final int oldLength = methodIds.length;
+            methodIds = Arrays.copyOf(methodIds, Math.max(frameId + 1, oldLength * 2));
+            Arrays.fill(methodIds, oldLength, methodIds.length, -1);
+         }
+         int id = methodIds[frameId];
+         if (id == -1) {
+            id = FrameDictionary.GLOBAL.intern(new StackTraceElement(frame.getClassName(), frame.getMethodName(),
+                  null, -1));
+            methodIds[frameId] = id;
+         }
+         return id;
+      }
+
+      private long[] threadIds() {
+         final Pattern pattern = threadNamePattern;
+         if (pattern == null) {
+            return THREAD_BEAN.getAllThreadIds();
+         }
+         ThreadGroup root = Thread.currentThread().getThreadGroup();
+         while (root.getParent() != null) {
+            root = root.getParent();
+         }
+         Thread[] threads = new Thread[root.activeCount() + 16];
+         int n;
+         while ((n = root.enumerate(threads, true)) == threads.length) {
+            threads = new Thread[threads.length * 2];
+         }
+         final long[] matching = new long[n];
+         int m = 0;
+         for (int i = 0; i < n; i++) {
+            if (pattern.matcher(threads[i].getName()).matches()) {
+               matching[m++] = threads[i].getId();
+            }
+         }
+         return Arrays.copyOf(matching, m);
+      }
+   }
+
+   private CallTree treeFor(final String threadName) {
+      String group = groupNames.get(threadName);
+      if (group == null) {
+         group = groupOf(threadName);
+         if (groupNames.size() >= MAX_GROUPS * 4) {
+            // Only a cache; threads named by sequence would grow it forever.
+            groupNames.clear();
+         }
+         groupNames.put(threadName, group);
+      }
+      CallTree tree = trees.get(group);
+      if (tree == null) {
+         if (trees.size() >= MAX_GROUPS) {
+            group = OTHER_GROUP;
+            tree = trees.get(group);
+         }
+         if (tree == null) {
+            tree = new CallTree();
+            trees.put(group, tree);
+         }
+      }
+      return tree;
+   }
+
+   /** The thread name with every run of digits replaced by {@code #}. */
+   static String groupOf(final String threadName) {
+      final StringBuilder sb = new StringBuilder(threadName.length());
+      boolean inDigits = false;
+      for (int i = 0; i < threadName.length(); i++) {
+         final char c = threadName.charAt(i);
+         if ((c >= '0') && (c <= '9')) {
+            if (!inDigits) {
+               sb.append('#');
+               inDigits = true;
+            }
+         }
+         else {
+            sb.append(c);
+            inDigits = false;
+         }
+      }
+      return sb.toString();
+   }
+
+   /**
+    * A calling-context tree in parallel arrays. Node 0 is the root; each node is a frame
+    * reached through the frames of its ancestors. Children are a linked list, which is
+    * short for nearly every node.
+    */
+   private static final class CallTree {
+      /** Beyond this, samples are credited to the deepest node that fits. */
+      private final static int MAX_NODES = 1 << 20;
+
+      private int size = 1;
+      private int[] frame = new int[64];
+      private int[] parent = new int[64];
+      private int[] firstChild = new int[64];
+      private int[] nextSibling = new int[64];
+      /** Samples with this node on top. */
+      private long[] self = new long[64];
+      /** Samples with this node anywhere on the stack. */
+      private long[] total = new long[64];
+
+      CallTree() {
+         frame[0] = -1;
+         parent[0] = -1;
+         firstChild[0] = -1;
+         nextSibling[0] = -1;
+      }
+
+      /**
+       * @param ids
+       *        the stack, innermost frame first
+       */
+      void add(final int[] ids, final int length, final boolean truncated) {
+         int node = 0;
+         total[0]++;
+         if (truncated) {
+            node = child(node, FrameDictionary.GLOBAL.intern(TRUNCATED));
+            total[node]++;
+         }
+         for (int i = length - 1; i >= 0; i--) {
+            final int c = child(node, ids[i]);
+            if (c == -1) {
+               break;
+            }
+            node = c;
+            total[node]++;
+         }
+         self[node]++;
+      }
+
+      /** @return the child of {@code node} for the frame, added if new, or -1 if full */
+      private int child(final int node, final int frameId) {
+         int last = -1;
+         for (int c = firstChild[node]; c != -1; c = nextSibling[c]) {
+            if (frame[c] == frameId) {
+               return c;
+            }
+            last = c;
+         }
+         if (size == MAX_NODES) {
+            return -1;
+         }
+         if (size == frame.length) {
+            grow();
+         }
+         final int c = size++;
+         frame[c] = frameId;
+         parent[c] = node;
+         firstChild[c] = -1;
+         nextSibling[c] = -1;
+         if (last == -1) {
+            firstChild[node] = c;
+         }
+         else {
+            nextSibling[last] = c;
+         }
+         return c;
+      }
+
+      private void grow() {
+         final int length = Math.min(MAX_NODES, frame.length * 2);
+         frame = Arrays.copyOf(frame, length);
+         parent = Arrays.copyOf(parent, length);
+         firstChild = Arrays.copyOf(firstChild, length);
+         nextSibling = Arrays.copyOf(nextSibling, length);
+         self = Arrays.copyOf(self, length);
+         total = Arrays.copyOf(total, length);
+      }
+   }
+
+   // ////////////////////////////////////////////////////////////////
+   // Export
+
+   public void writeFolded(final File file) throws IOException {
+      final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+         writeFolded(out);
+      }
+      finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Writes one {@code group;outer;...;inner count} line per distinct stack, the format
+    * {@code flamegraph.pl} reads. Frames are {@code class.method}.
+    */
+   public synchronized void writeFolded(final Writer out) throws IOException {
+      final StringBuilder path = new StringBuilder();
+      for (Map.Entry<String, CallTree> e : sortedTrees().entrySet()) {
+         path.setLength(0);
+         path.append(foldedName(e.getKey()));
+         writeFolded(e.getValue(), 0, path, out);
+      }
+      out.flush();
+   }
+
+   private static void writeFolded(final CallTree tree, final int node, final StringBuilder path, final Writer out)
+         throws IOException {
+      if (tree.self[node] > 0) {
+         out.write(path.toString());
+         out.write(' ');
+         out.write(Long.toString(tree.self[node]));
+         out.write('\n');
+      }
+      final int length = path.length();
+      for (int c = tree.firstChild[node]; c != -1; c = tree.nextSibling[c]) {
+         path.append(';').append(foldedName(frameName(tree.frame[c])));
+         writeFolded(tree, c, path, out);
+         path.setLength(length);
+      }
+   }
+
+   public void writeFlameGraph(final File file) throws IOException {
+      final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+         writeFlameGraph(out, file.getName());
+      }
+      finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Writes a flame graph as one HTML page with the profile and its script inline, so it
+    * can be opened or attached to a bug report as is. Click a frame to zoom to it,
+    * click the root to zoom out.
+    */
+   public synchronized void writeFlameGraph(final Writer out, final String title) throws IOException {
+      out.write("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>");
+      out.write(escapeHtml(title));
+      out.write("</title>\n<style>\n");
+      out.write("body{font:12px sans-serif;margin:8px}#g{position:relative;width:100%}\n");
+      out.write(".f{position:absolute;height:16px;overflow:hidden;white-space:nowrap;box-sizing:border-box;");
+      out.write("border:1px solid #fff;padding:0 2px;cursor:pointer;line-height:14px}\n");
+      out.write("#i{height:18px;font-family:monospace}\n");
+      out.write("</style></head><body>\n<h3>");
+      out.write(escapeHtml(title));
+      out.write("</h3><div id=\"i\"></div><div id=\"g\"></div>\n<script>\n");
+
+      // Each node is [name, total, self, children...].
+      out.write("var root=[\"all\",");
+      long all = 0;
+      for (CallTree tree : trees.values()) {
+         all += tree.total[0];
+      }
+      out.write(Long.toString(all));
+      out.write(",0");
+      for (Map.Entry<String, CallTree> e : sortedTrees().entrySet()) {
+         out.write(",\n");
+         writeJson(e.getValue(), 0, e.getKey(), out);
+      }
+      out.write("];\n");
+
+      out.write("var g=document.getElementById('g'),info=document.getElementById('i');\n");
+      out.write("function depth(n){var d=0;for(var i=3;i<n.length;i++)d=Math.max(d,depth(n[i]));return d+1}\n");
+      out.write("function color(s){var h=0;for(var i=0;i<s.length;i++)h=(h*31+s.charCodeAt(i))|0;");
+      out.write("return 'hsl('+(10+Math.abs(h)%40)+',80%,'+(55+Math.abs(h>>8)%15)+'%)'}\n");
+      out.write("function draw(z){g.innerHTML='';var rows=depth(z);g.style.height=(rows*16)+'px';");
+      out.write("var w=g.clientWidth;function put(n,x,lvl){var width=n[1]/z[1]*w;if(width<1)return;");
+      out.write("var d=document.createElement('div');d.className='f';d.style.left=x+'px';");
+      out.write("d.style.top=((rows-lvl-1)*16)+'px';d.style.width=width+'px';d.style.background=color(n[0]);");
+      out.write("d.textContent=n[0];var t=n[0]+' ('+n[1]+' samples, '+(100*n[1]/root[1]).toFixed(2)+'%)';");
+      out.write("d.title=t;d.onmouseover=function(){info.textContent=t};");
+      out.write("d.onclick=function(){draw(n===z?root:n)};g.appendChild(d);");
+      out.write("for(var i=3;i<n.length;i++){put(n[i],x,lvl+1);x+=n[i][1]/z[1]*w}}put(z,0,0)}\n");
+      out.write("draw(root);window.onresize=function(){draw(root)};\n");
+      out.write("</script></body></html>\n");
+      out.flush();
+   }
+
+   private static void writeJson(final CallTree tree, final int node, final String name, final Writer out)
+         throws IOException {
+      out.write('[');
+      writeJsonString(name, out);
+      out.write(',');
+      out.write(Long.toString(tree.total[node]));
+      out.write(',');
+      out.write(Long.toString(tree.self[node]));
+      for (int c = tree.firstChild[node]; c != -1; c = tree.nextSibling[c]) {
+         out.write(',');
+         writeJson(tree, c, frameName(tree.frame[c]), out);
+      }
+      out.write(']');
+   }
+
+   private static void writeJsonString(final String s, final Writer out) throws IOException {
+      out.write('"');
+      for (int i = 0; i < s.length(); i++) {
+         final char c = s.charAt(i);
+         if ((c == '"') || (c == '\\')) {
+            out.write('\\');
+            out.write(c);
+         }
+         else if ((c < 0x20) || (c == '<') || (c == '>') || (c == '&')) {
+            // Also keeps "</script>" in a frame name from ending the script.
+            out.write(String.format("\\u%04x", (int) c));
+         }
+         else {
+            out.write(c);
+         }
+      }
+      out.write('"');
+   }
+
+   private static String escapeHtml(final String s) {
+      return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+   }
+
+   private Map<String, CallTree> sortedTrees() {
+      return new TreeMap<String, CallTree>(trees);
+   }
+
+   private static String frameName(final int frameId) {
+      final StackTraceElement frame = FrameDictionary.GLOBAL.frame(frameId);
+      if (frame.getMethodName().length() == 0) {
+         return frame.getClassName();
+      }
+      return frame.getClassName() + '.' + frame.getMethodName();
+   }
+
+   /** Folded lines are split on ';' and the last space, so neither may be in a name. */
+   private static String foldedName(final String name) {
+      return name.replace(';', ':').replace(' ', '_');
+   }
+}